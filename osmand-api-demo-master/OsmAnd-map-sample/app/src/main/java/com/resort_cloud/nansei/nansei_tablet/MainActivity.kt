@@ -13,9 +13,11 @@ import android.widget.LinearLayout
 import android.widget.ProgressBar
 import android.widget.TextView
 import androidx.activity.viewModels
+import androidx.appcompat.app.AlertDialog
 import androidx.core.content.ContextCompat
 import androidx.core.view.WindowInsetsCompat
 import com.google.android.material.card.MaterialCardView
+import com.resort_cloud.nansei.nansei_tablet.data.model.FacilityMarker
 import com.resort_cloud.nansei.nansei_tablet.dialog.SearchDestinationDialog
 import com.resort_cloud.nansei.nansei_tablet.layers.FacilityMarkerLayer
 import com.resort_cloud.nansei.nansei_tablet.layers.InternalRoutesLayer
@@ -122,6 +124,7 @@ class MainActivity : OsmandActionBarActivity(), AppInitializeListener, DownloadE
     private var lnLoadingView: LinearLayout? = null
     private var lnOutOfArea: LinearLayout? = null
     private var myLocationImv: ImageButton? = null
+    private var facilityFilterButton: ImageButton? = null
     private var followLocationEnabled = false
     private var hasUpdateFirstOpenMap = false
     private var navigationActive = false
@@ -180,6 +183,7 @@ class MainActivity : OsmandActionBarActivity(), AppInitializeListener, DownloadE
         lnLoadingView = findViewById(R.id.ln_loading_view)
         lnOutOfArea = findViewById(R.id.ln_out_of_area)
         myLocationImv = findViewById(R.id.img_my_location)
+        facilityFilterButton = findViewById(R.id.btn_facility_filter)
 
         // Search destination views
         searchBarDestination = findViewById(R.id.search_bar_destination)
@@ -223,6 +227,9 @@ class MainActivity : OsmandActionBarActivity(), AppInitializeListener, DownloadE
                 centerMapOnLocation(it)
             }
         }
+        facilityFilterButton?.setOnClickListener {
+            showFacilityFilterDialog()
+        }
         setupSearchDestination()
         
         // Preload internal routes data early (before map initialization)
@@ -1065,7 +1072,7 @@ class MainActivity : OsmandActionBarActivity(), AppInitializeListener, DownloadE
 //        addShigiraResortMapOverlay() //TODO only use for nansei
 
         // Setup custom facility markers
-//        setupFacilityMarkers()
+        setupFacilityMarkers()
 
         // Setup internal routes from GPX
         setupInternalRoutes()
@@ -1114,7 +1121,8 @@ class MainActivity : OsmandActionBarActivity(), AppInitializeListener, DownloadE
 
     /**
      * Setup custom facility markers layer
-     * Uses constant data from MarkerDataConstants (extracted from miyako_map.html)
+     * Shows constant data from MarkerDataConstants (extracted from miyako_map.html)
+     * until facilities are loaded by MainViewModel
      */
     private fun setupFacilityMarkers() {
         try {
@@ -1125,16 +1133,16 @@ class MainActivity : OsmandActionBarActivity(), AppInitializeListener, DownloadE
                 }
             }
 
-            // Create new layer with constant data (no need for ViewModel data)
+            // Create new layer, facilities already loaded by ViewModel replace constant data
             facilityMarkerLayer = FacilityMarkerLayer(this)
             facilityMarkerLayer?.let { layer ->
                 mapTileView?.addLayer(layer, 5f)
-                val markerCount =
-                    com.resort_cloud.nansei.nansei_tablet.data.MarkerDataConstants.getAllMarkers().size
-                Log.d(
-                    "MainActivity",
-                    "✅ Facility markers added: $markerCount markers from constants"
-                )
+                viewModel.facilityKinds.value?.let { layer.setFacilityKinds(it) }
+                // Tapping a marker selects destination like the search dialog
+                layer.onFacilitySelected = { facility ->
+                    onDestinationSelected(facility)
+                }
+                Log.d("MainActivity", "✅ Facility markers layer added")
             }
             mapTileView?.refreshMap()
         } catch (e: Exception) {
@@ -1411,6 +1419,8 @@ class MainActivity : OsmandActionBarActivity(), AppInitializeListener, DownloadE
         // Observe facility kinds
         viewModel.facilityKinds.observe(this) { facilityKinds ->
             Log.d("MainActivity", "Facility kinds updated: ${facilityKinds.size}")
+            // Markers are diffed by facility id, unchanged data costs nothing
+            facilityMarkerLayer?.setFacilityKinds(facilityKinds)
         }
 
         // Observe errors
@@ -1424,25 +1434,50 @@ class MainActivity : OsmandActionBarActivity(), AppInitializeListener, DownloadE
         }
     }
 
+    /**
+     * Let staff switch facility kinds on the map on and off
+     * Lists the kinds markers are keyed by, labelled with their category names,
+     * each checkbox toggles one kind in the marker layer right away
+     */
+    private fun showFacilityFilterDialog() {
+        val layer = facilityMarkerLayer ?: return
+        val markerKinds = FacilityMarker.markerKinds(viewModel.facilityKinds.value.orEmpty())
+        if (markerKinds.isEmpty()) return
+
+        val kinds = markerKinds.keys.toList()
+        val names = markerKinds.values.map { it.joinToString(" / ") }.toTypedArray()
+        val checked = BooleanArray(kinds.size) { layer.isCategoryVisible(kinds[it]) }
+        AlertDialog.Builder(this)
+            .setTitle(R.string.facility_filter_title)
+            .setMultiChoiceItems(names, checked) { _, which, isChecked ->
+                layer.setCategoryVisible(kinds[which], isChecked)
+            }
+            .setPositiveButton(R.string.close) { dialog, _ ->
+                dialog.dismiss()
+            }
+            .show()
+    }
+
     /**
      * Mở dialog search destination
      */
     private fun openSearchDestinationDialog() {
-        val currentFacilityKinds = viewModel.facilityKinds.value ?: emptyList()
+        val searchIndex = viewModel.searchIndex.value ?: return
 
-        if (currentFacilityKinds.isEmpty())
+        if (searchIndex.isEmpty)
             return
-        showSearchDialog(currentFacilityKinds)
+        showSearchDialog(searchIndex)
 
     }
 
     /**
      * Hiển thị search dialog
      */
-    private fun showSearchDialog(facilityKinds: List<com.resort_cloud.nansei.nansei_tablet.data.model.FacilityKind>) {
+    private fun showSearchDialog(searchIndex: com.resort_cloud.nansei.nansei_tablet.utils.FacilitySearchIndex) {
         val dialog = SearchDestinationDialog.newInstance(
-            facilityKinds = facilityKinds,
+            searchIndex = searchIndex,
             currentDestinationText = destinationText,
+            currentLocation = locationProvider?.lastKnownLocation?.let { LatLon(it.latitude, it.longitude) },
             onFacilitySelected = { facility ->
                 onDestinationSelected(facility)
             }
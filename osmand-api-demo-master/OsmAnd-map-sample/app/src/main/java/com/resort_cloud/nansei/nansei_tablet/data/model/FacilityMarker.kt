@@ -0,0 +1,84 @@
+package com.resort_cloud.nansei.nansei_tablet.data.model
+
+import com.resort_cloud.nansei.nansei_tablet.data.MarkerDataConstants
+
+/**
+ * Typed marker shown by FacilityMarkerLayer
+ * Identified by facilityId, so marker lists can be diffed when new data arrives
+ */
+data class FacilityMarker(
+    val facilityId: Int,
+    val facilityKind: String,
+    val name: String,
+    val latitude: Double,
+    val longitude: Double,
+    val facility: Facility? = null,
+    val categoryName: String = ""
+) {
+
+    companion object {
+
+        /**
+         * Kind a facility's marker is keyed by: its own kind, or its category's when unset
+         */
+        fun markerKind(facility: Facility, kind: FacilityKind): String {
+            return facility.facilityKind.ifEmpty { kind.facilityKind }
+        }
+
+        /**
+         * Distinct marker kinds (lowercase, as the layer keys them) in list order,
+         * each with the names of the categories holding facilities of that kind
+         */
+        fun markerKinds(facilityKinds: List<FacilityKind>): Map<String, List<String>> {
+            val result = LinkedHashMap<String, MutableList<String>>()
+            for (kind in facilityKinds) {
+                for (facility in kind.facilities) {
+                    val names = result.getOrPut(markerKind(facility, kind).lowercase()) { ArrayList(1) }
+                    if (kind.name !in names) {
+                        names.add(kind.name)
+                    }
+                }
+            }
+            return result
+        }
+
+        /**
+         * Markers from API facility kinds
+         */
+        fun fromFacilityKinds(facilityKinds: List<FacilityKind>): List<FacilityMarker> {
+            val markers = ArrayList<FacilityMarker>()
+            for (kind in facilityKinds) {
+                for (facility in kind.facilities) {
+                    markers.add(
+                        FacilityMarker(
+                            facilityId = facility.facilityId,
+                            facilityKind = markerKind(facility, kind),
+                            name = facility.markerData.name.ifEmpty { facility.listData.name },
+                            latitude = facility.markerData.latitude,
+                            longitude = facility.markerData.longitude,
+                            facility = facility,
+                            categoryName = kind.name
+                        )
+                    )
+                }
+            }
+            return markers
+        }
+
+        /**
+         * Markers from bundled constants, shown until API data is available
+         * Constants have no facility id, negative ids keep them apart from API facilities
+         */
+        fun fromConstants(markers: List<MarkerDataConstants.MarkerInfo>): List<FacilityMarker> {
+            return markers.mapIndexed { index, marker ->
+                FacilityMarker(
+                    facilityId = -(index + 1),
+                    facilityKind = marker.facilityKind,
+                    name = marker.name,
+                    latitude = marker.latitude,
+                    longitude = marker.longitude
+                )
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.resort_cloud.nansei.nansei_tablet.data.model
+
+/**
+ * Processed internal route track, ready to be drawn by InternalRoutesLayer
+ * Points are stored as interleaved 31-bit tile coordinates: x0, y0, x1, y1, ...
+ */
+class RouteTrack(
+    val wayId: Long,
+    val tags: Map<String, String>,
+    val points31: IntArray
+) {
+    
+    companion object {
+        /**
+         * OSM tags kept on processed tracks, everything else is dropped after parsing
+         */
+        val RENDER_TAGS = setOf("highway", "service", "golf_cart", "oneway", "name")
+    }
+    
+    /**
+     * Stable identity of a track: OSM way id plus geometry hash
+     * Changes whenever the way's points change, so drawn lines can be diffed on refresh
+     */
+    data class Key(
+        val wayId: Long,
+        val geometryHash: Int
+    )
+    
+    val key: Key by lazy { Key(wayId, points31.contentHashCode()) }
+    
+    val pointCount: Int
+        get() = points31.size / 2
+    
+    fun getX31(index: Int): Int = points31[index * 2]
+    
+    fun getY31(index: Int): Int = points31[index * 2 + 1]
+}
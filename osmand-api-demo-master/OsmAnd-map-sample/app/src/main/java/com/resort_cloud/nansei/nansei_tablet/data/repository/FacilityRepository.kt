@@ -7,6 +7,10 @@ import com.resort_cloud.nansei.nansei_tablet.data.model.ErrorResponse
 import com.resort_cloud.nansei.nansei_tablet.data.model.FacilityResponse
 import com.resort_cloud.nansei.nansei_tablet.utils.FileStorageUtils
 import com.resort_cloud.nansei.nansei_tablet.utils.NetworkUtils
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
 import retrofit2.HttpException
 import retrofit2.Response
 
@@ -21,69 +25,62 @@ class FacilityRepository(private val context: Context) {
     private val gson = Gson()
 
     /**
-     * Fetch facilities from the API or cache
-     * - If network available: Call API, save to cache, return data
-     * - If network unavailable: Load from cache file
-     * Returns Result with FacilityResponse on success or ApiException on error
+     * Facilities, stale-while-revalidate
+     * - Emits the cached response first, as soon as it is read from disk
+     * - If network available: calls API in the background, saves and emits again
+     *   only when the payload differs from the cached one
+     * - Errors are emitted only when there is no cached data to show
+     * Each emission is a Result with FacilityResponse on success or ApiException on error
      */
-    suspend fun getFacilities(): Result<FacilityResponse> {
-        return if (NetworkUtils.isNetworkAvailable(context)) {
-            // Has network: Call API
-            fetchFromApi()
-        } else {
-            // No network: Load from cache
-            loadFromCache()
+    fun getFacilities(): Flow<Result<FacilityResponse>> = flow {
+        val cachedData = FileStorageUtils.loadFacilities(context)
+        if (cachedData != null) {
+            emit(Result.success(cachedData))
         }
-    }
-    
-    /**
-     * Fetch facilities from API and save to cache
-     */
-    private suspend fun fetchFromApi(): Result<FacilityResponse> {
-        return try {
-            val response: Response<FacilityResponse> = apiService.getFacilities()
-
-            if (response.isSuccessful && response.body() != null) {
-                val facilityResponse = response.body()!!
-                
-                // Save to cache file
+        
+        if (!NetworkUtils.isNetworkAvailable(context)) {
+            // No network: cache is all we have
+            if (cachedData == null) {
+                emit(Result.failure(ApiException(null, null)))
+            }
+            return@flow
+        }
+        
+        fetchFromApi().onSuccess { facilityResponse ->
+            // Response timestamp changes on every call, only the payload decides
+            if (facilityResponse.payload != cachedData?.payload) {
                 val saved = FileStorageUtils.saveFacilities(context, facilityResponse)
                 if (saved) {
                     android.util.Log.d("FacilityRepository", "Cache saved to: ${FileStorageUtils.getCacheFilePath(context)}")
                 }
-                
-                Result.success(facilityResponse)
+                emit(Result.success(facilityResponse))
             } else {
-                val errorMessage = parseErrorResponse(response) ?: ""
-                
-                // If API fails but we have cached data, return cached data
-                val cachedData = FileStorageUtils.loadFacilities(context)
-                if (cachedData != null) {
-                    Result.success(cachedData)
-                } else {
-                    Result.failure(ApiException(errorMessage, response.code()))
-                }
+                android.util.Log.d("FacilityRepository", "Facilities unchanged, keeping cached data")
             }
-        } catch (e: Exception) {
-            // Network error: Try to load from cache
-            val cachedData = FileStorageUtils.loadFacilities(context)
-            if (cachedData != null) {
-                Result.success(cachedData)
+        }.onFailure { exception ->
+            if (cachedData == null) {
+                emit(Result.failure(exception))
             } else {
-                Result.failure(e)
+                android.util.Log.w("FacilityRepository", "Revalidation failed, keeping cached data", exception)
             }
         }
-    }
+    }.flowOn(Dispatchers.IO)
     
     /**
-     * Load facilities from cache file
+     * Fetch facilities from API
      */
-    private fun loadFromCache(): Result<FacilityResponse> {
-        val cachedData = FileStorageUtils.loadFacilities(context)
-        return if (cachedData != null) {
-            Result.success(cachedData)
-        } else {
-            Result.failure(ApiException(null, null))
+    private suspend fun fetchFromApi(): Result<FacilityResponse> {
+        return try {
+            val response: Response<FacilityResponse> = apiService.getFacilities()
+
+            if (response.isSuccessful && response.body() != null) {
+                Result.success(response.body()!!)
+            } else {
+                val errorMessage = parseErrorResponse(response) ?: ""
+                Result.failure(ApiException(errorMessage, response.code()))
+            }
+        } catch (e: Exception) {
+            Result.failure(e)
         }
     }
 
@@ -2,8 +2,6 @@ package com.resort_cloud.nansei.nansei_tablet.dialog
 
 import android.app.Dialog
 import android.os.Bundle
-import android.os.Handler
-import android.os.Looper
 import android.text.Editable
 import android.text.TextWatcher
 import android.view.LayoutInflater
@@ -14,13 +12,26 @@ import android.widget.EditText
 import android.widget.ImageView
 import android.widget.TextView
 import androidx.fragment.app.DialogFragment
+import androidx.lifecycle.lifecycleScope
 import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import com.resort_cloud.nansei.nansei_tablet.R
 import com.resort_cloud.nansei.nansei_tablet.adapter.FacilitySearchAdapter
-import com.resort_cloud.nansei.nansei_tablet.data.model.FacilityKind
 import com.resort_cloud.nansei.nansei_tablet.utils.FacilityItem
-import com.resort_cloud.nansei.nansei_tablet.utils.SearchHelper
+import com.resort_cloud.nansei.nansei_tablet.utils.FacilitySearchIndex
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.FlowPreview
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.debounce
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.flowOf
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.mapLatest
+import kotlinx.coroutines.flow.merge
+import kotlinx.coroutines.launch
+import net.osmand.data.LatLon
 
 /**
  * Dialog để search và chọn destination facility
@@ -28,28 +39,38 @@ import com.resort_cloud.nansei.nansei_tablet.utils.SearchHelper
  */
 class SearchDestinationDialog : DialogFragment() {
 
-    private var facilityKinds: List<FacilityKind> = emptyList()
+    private var searchIndex: FacilitySearchIndex = FacilitySearchIndex.EMPTY
     private var onFacilitySelected: ((FacilityItem.FacilityData) -> Unit)? = null
     private var currentDestinationText: String = ""
 
+    // Current location fix, results are ranked by distance when available
+    private var currentLocation: LatLon? = null
+
     private lateinit var etSearch: EditText
     private lateinit var btnClear: ImageView
     private lateinit var rvFacilities: RecyclerView
     private lateinit var adapter: FacilitySearchAdapter
 
-    // Debounce handler
-    private val handler = Handler(Looper.getMainLooper())
-    private var updateCount = 0
+    // Search terms typed by user, only the latest one matters
+    private val searchTerms = MutableSharedFlow<String>(
+        extraBufferCapacity = 1,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
 
     companion object {
+        // Debounce 300ms như Flutter
+        private const val SEARCH_DEBOUNCE_MS = 300L
+
         fun newInstance(
-            facilityKinds: List<FacilityKind>,
+            searchIndex: FacilitySearchIndex,
             currentDestinationText: String = "",
+            currentLocation: LatLon? = null,
             onFacilitySelected: (FacilityItem.FacilityData) -> Unit
         ): SearchDestinationDialog {
             return SearchDestinationDialog().apply {
-                this.facilityKinds = facilityKinds
+                this.searchIndex = searchIndex
                 this.currentDestinationText = currentDestinationText
+                this.currentLocation = currentLocation
                 this.onFacilitySelected = onFacilitySelected
             }
         }
@@ -96,33 +117,23 @@ class SearchDestinationDialog : DialogFragment() {
         rvFacilities.layoutManager = LinearLayoutManager(context)
         rvFacilities.adapter = adapter
 
-        // Load initial data
-        updateFacilityList(etSearch.text.toString())
+        // Load initial data, then follow search text
+        collectSearchResults(etSearch.text.toString())
 
-        // Setup search text watcher với debounce (300ms như Flutter)
+        // Setup search text watcher, debounce is done by the search flow
         etSearch.addTextChangedListener(object : TextWatcher {
             override fun beforeTextChanged(s: CharSequence?, start: Int, count: Int, after: Int) {}
             override fun onTextChanged(s: CharSequence?, start: Int, before: Int, count: Int) {}
             override fun afterTextChanged(s: Editable?) {
-                updateCount++
-                val nowCount = updateCount
-                
-                // Debounce 300ms
-                handler.postDelayed({
-                    if (nowCount == updateCount) {
-                        val searchTerm = s?.toString() ?: ""
-                        updateFacilityList(searchTerm)
-                        updateClearButtonVisibility(searchTerm)
-                    }
-                }, 300)
+                val searchTerm = s?.toString() ?: ""
+                searchTerms.tryEmit(searchTerm)
+                updateClearButtonVisibility(searchTerm)
             }
         })
 
-        // Clear button
+        // Clear button, empty term skips debounce
         btnClear.setOnClickListener {
             etSearch.setText("")
-            updateFacilityList("")
-            updateClearButtonVisibility("")
         }
 
         // Cancel button
@@ -134,9 +145,27 @@ class SearchDestinationDialog : DialogFragment() {
         updateClearButtonVisibility(etSearch.text.toString())
     }
 
-    private fun updateFacilityList(searchTerm: String) {
-        val filteredList = SearchHelper.filterFacilities(facilityKinds, searchTerm)
-        adapter.submitList(filteredList)
+    /**
+     * Search pipeline: text changes -> debounce -> search on Dispatchers.Default -> submitList
+     * mapLatest drops a running search as soon as a newer term arrives
+     */
+    @OptIn(FlowPreview::class, ExperimentalCoroutinesApi::class)
+    private fun collectSearchResults(initialTerm: String) {
+        val debouncedTerms = searchTerms.debounce { searchTerm ->
+            if (searchTerm.isEmpty()) 0L else SEARCH_DEBOUNCE_MS
+        }
+        viewLifecycleOwner.lifecycleScope.launch {
+            merge(flowOf(initialTerm), debouncedTerms)
+                .distinctUntilChanged()
+                .mapLatest { searchTerm -> search(searchTerm) }
+                .flowOn(Dispatchers.Default)
+                .collect { filteredList -> adapter.submitList(filteredList) }
+        }
+    }
+
+    private fun search(searchTerm: String): List<FacilityItem> {
+        val location = currentLocation ?: return searchIndex.search(searchTerm)
+        return searchIndex.searchRanked(searchTerm, location.latitude, location.longitude)
     }
 
     private fun updateClearButtonVisibility(searchTerm: String) {
@@ -1,12 +1,19 @@
 package com.resort_cloud.nansei.nansei_tablet.layers
 
-import android.annotation.SuppressLint
 import android.content.Context
-import android.graphics.Bitmap
 import android.graphics.Canvas
+import android.graphics.PointF
+import android.util.Log
+import androidx.annotation.DrawableRes
 import androidx.core.content.ContextCompat
 import androidx.core.graphics.createBitmap
+import com.resort_cloud.nansei.nansei_tablet.R
 import com.resort_cloud.nansei.nansei_tablet.data.MarkerDataConstants
+import com.resort_cloud.nansei.nansei_tablet.data.model.FacilityKind
+import com.resort_cloud.nansei.nansei_tablet.data.model.FacilityMarker
+import com.resort_cloud.nansei.nansei_tablet.utils.FacilityItem
+import com.resort_cloud.nansei.nansei_tablet.utils.MarkerClusterIndex
+import com.resort_cloud.nansei.nansei_tablet.utils.QuadkeyIndex
 import net.osmand.core.android.MapRendererContext
 import net.osmand.core.android.MapRendererView
 import net.osmand.core.jni.MapMarker
@@ -19,29 +26,100 @@ import net.osmand.core.jni.SwigUtilities
 import net.osmand.core.jni.TextRasterizer
 import net.osmand.core.jni.TileId
 import net.osmand.core.jni.ZoomLevel
+import net.osmand.core.jni.interface_MapTiledCollectionPoint
 import net.osmand.core.jni.interface_MapTiledCollectionProvider
+import net.osmand.data.LatLon
 import net.osmand.data.RotatedTileBox
 import net.osmand.plus.utils.NativeUtilities
 import net.osmand.plus.views.OsmandMapTileView
 import net.osmand.plus.views.layers.MapTextLayer
 import net.osmand.plus.views.layers.base.OsmandMapLayer
 import net.osmand.util.MapUtils
+import java.util.BitSet
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
 
 /**
  * OFFICIAL APPROACH: Use MapTiledCollectionProvider
  * Markers are rendered as part of map tiles, no need to redraw on pan/zoom
  * Similar to default POI markers and Favorites markers in OsmAnd
+ * Bundled constants are shown until facilities are loaded by MainViewModel
+ * Tapping a facility marker selects it as destination through onFacilitySelected
  */
 class FacilityMarkerLayer(context: Context) : OsmandMapLayer(context) {
 
+    companion object {
+        // Touch radius around tap point
+        private const val TAP_RADIUS_DP = 24f
+    }
+
+    // Created on the render path, read from the main thread
+    @Volatile
     private var facilityTileProvider: FacilityTileProvider? = null
-    private val markers = MarkerDataConstants.getAllMarkers()
+
+    // Guards provider creation against marker and visibility updates, so an update made
+    // while the provider is built either goes into it or finds it and is applied to it
+    private val providerLock = Any()
+
+    @Volatile
+    private var markers = FacilityMarker.fromConstants(MarkerDataConstants.getAllMarkers())
+
+    // Facility kinds switched off by staff, applied to the provider on creation
+    // Replaced as a whole, so the render path always reads a consistent set
+    @Volatile
+    private var hiddenKinds: Set<String> = emptySet()
+
+    // Same callback as SearchDestinationDialog
+    var onFacilitySelected: ((FacilityItem.FacilityData) -> Unit)? = null
 
     override fun initLayer(view: OsmandMapTileView) {
         super.initLayer(view)
     }
 
+    /**
+     * Update markers from facility kinds loaded by MainViewModel
+     * Facilities are diffed by facilityId, the provider is only refreshed when something changed
+     */
+    fun setFacilityKinds(facilityKinds: List<FacilityKind>) {
+        val newMarkers = FacilityMarker.fromFacilityKinds(facilityKinds)
+        if (newMarkers.isEmpty()) {
+            // Keep current markers when there is nothing to show
+            return
+        }
+        // Without a provider yet, markers are picked up when it is created
+        val provider = synchronized(providerLock) {
+            markers = newMarkers
+            facilityTileProvider
+        } ?: return
+        if (provider.updateMarkers(newMarkers)) {
+            getMapRenderer()?.let { provider.refreshSymbols(it) }
+            view?.refreshMap()
+        }
+    }
+
+    /**
+     * Show or hide all markers of a facility kind (hotel, restaurant, golf, parking...)
+     * Only the bit of that kind changes, the provider is asked for its tiles again
+     */
+    fun setCategoryVisible(facilityKind: String, visible: Boolean) {
+        val kind = facilityKind.lowercase()
+        // Same lock as provider creation, a toggle is never lost in between
+        val provider = synchronized(providerLock) {
+            if ((kind !in hiddenKinds) == visible) return
+            hiddenKinds = if (visible) hiddenKinds - kind else hiddenKinds + kind
+            facilityTileProvider
+        } ?: return
+        if (provider.setKindVisible(kind, visible)) {
+            getMapRenderer()?.let { provider.refreshSymbols(it) }
+            view?.refreshMap()
+        }
+    }
+
+    fun isCategoryVisible(facilityKind: String): Boolean {
+        return facilityKind.lowercase() !in hiddenKinds
+    }
 
     /**
      * IMPORTANT: Initialize provider only once in onPrepareBufferImage
@@ -61,6 +139,16 @@ class FacilityMarkerLayer(context: Context) : OsmandMapLayer(context) {
         }
 
         // Initialize only once
+        if (facilityTileProvider == null) {
+            createProvider(mapRenderer, settings)
+        }
+    }
+
+    /**
+     * Build the provider from the current markers and register it with the renderer
+     * Runs under providerLock, updates made meanwhile wait and are then applied to it
+     */
+    private fun createProvider(mapRenderer: MapRendererView, settings: DrawSettings?) = synchronized(providerLock) {
         if (facilityTileProvider == null) {
             val textScale = getTextScale()
             val density = view?.density ?: 1.0f
@@ -78,7 +166,8 @@ class FacilityMarkerLayer(context: Context) : OsmandMapLayer(context) {
                 true, // textVisible
                 textStyle,
                 textScale,
-                density
+                density,
+                hiddenKinds
             )
 
             // Add to map renderer - ONLY ONCE
@@ -86,6 +175,38 @@ class FacilityMarkerLayer(context: Context) : OsmandMapLayer(context) {
         }
     }
 
+    /**
+     * Select facility marker nearest to tap point within touch radius
+     */
+    override fun onSingleTap(point: PointF, tileBox: RotatedTileBox): Boolean {
+        val provider = facilityTileProvider ?: return false
+        val callback = onFacilitySelected ?: return false
+
+        // Tap point and touch radius in 31-bit coordinates
+        val radiusPx = TAP_RADIUS_DP * (view?.density ?: 1.0f)
+        val center = getLatLonFromPixel(tileBox, point.x, point.y)
+        val edge = getLatLonFromPixel(tileBox, point.x + radiusPx, point.y)
+        val x31 = MapUtils.get31TileNumberX(center.longitude)
+        val y31 = MapUtils.get31TileNumberY(center.latitude)
+        val dx = (MapUtils.get31TileNumberX(edge.longitude) - x31).toDouble()
+        val dy = (MapUtils.get31TileNumberY(edge.latitude) - y31).toDouble()
+        val radius31 = Math.hypot(dx, dy).toInt()
+
+        val marker = provider.findMarker(x31, y31, radius31, tileBox.zoom) ?: return false
+        val facility = marker.facility ?: return false
+        callback(FacilityItem.FacilityData(facility, marker.categoryName))
+        return true
+    }
+
+    private fun getLatLonFromPixel(tileBox: RotatedTileBox, x: Float, y: Float): LatLon {
+        val mapRenderer = getMapRenderer()
+        return if (mapRenderer != null) {
+            NativeUtilities.getLatLonFromPixel(mapRenderer, tileBox, x, y)
+        } else {
+            LatLon(tileBox.getLatFromPixel(x, y), tileBox.getLonFromPixel(x, y))
+        }
+    }
+
     /**
      * onDraw() - Leave empty because native engine renders automatically
      */
@@ -113,70 +234,201 @@ class FacilityMarkerLayer(context: Context) : OsmandMapLayer(context) {
 /**
  * Tile Provider for Facility Markers
  * Extends interface_MapTiledCollectionProvider similar to FavoritesTileProvider
+ * Markers are served per tile from a quadkey index, so the engine only prepares
+ * markers of requested tiles, on its own worker threads
+ * Up to CLUSTER_MAX_ZOOM markers of the same kind are merged into counted clusters
+ * Icons are rasterized once per kind and size, all markers of a kind share the same image
+ * Hidden facility kinds are kept in a bitset of kind ids, markers carry their kind id,
+ * so a toggle flips one bit and hidden markers are skipped when tiles are obtained
+ * New data updates the indexes in place, only for facilities that were added, changed or removed
  */
 class FacilityTileProvider(
     private val context: Context,
-    private val markers: List<*>, // List from MarkerDataConstants
+    markers: List<FacilityMarker>,
     private val baseOrder: Int,
     private val textVisible: Boolean,
     private val textStyle: TextRasterizer.Style,
     private val textScale: Float,
-    private val density: Float
+    private val density: Float,
+    hiddenKinds: Set<String> = emptySet()
 ) : interface_MapTiledCollectionProvider() {
 
-    private val points31 = QListPointI()
-    private val mapLayerDataList = mutableListOf<FacilityMapLayerData>()
-    private val bigBitmapCache = ConcurrentHashMap<Long, Bitmap>()
-    private val smallBitmapCache = ConcurrentHashMap<Long, Bitmap>()
+    companion object {
+        private const val TAG = "FacilityTileProvider"
+
+        // Individual markers are shown from this zoom on, clusters below it
+        private const val CLUSTER_MIN_ZOOM = 6
+        private const val CLUSTER_MAX_ZOOM = 14
+
+        // Icon sizes in dp, same as the former 48px / 24px bitmaps on xhdpi tablets
+        private const val FULL_ICON_SIZE_DP = 24
+        private const val SMALL_ICON_SIZE_DP = 12
+    }
+
+    private val emptyPoints31 = QListPointI()
+    // Native images per icon resource, shared by all markers of a kind
+    private val bigImages = ConcurrentHashMap<Int, SingleSkImage>()
+    private val smallImages = ConcurrentHashMap<Int, SingleSkImage>()
     private val offset = PointI(0, 0)
     private var providerInstance: MapTiledCollectionProvider? = null
 
+    // Kind ids are never reused, so a marker set built later still matches the hidden bits
+    private val kindIds = HashMap<String, Int>()
+
+    // Replaced as a whole on toggle, engine worker threads always read a consistent set
+    @Volatile
+    private var hiddenKindIds = BitSet().apply { hiddenKinds.forEach { set(kindId(it)) } }
+
+    // Marker slots, guarded by lock: updates come from the main thread, tiles are
+    // obtained on engine worker threads. A removed facility leaves its slot empty
+    // until a new facility takes it, so indexes of other markers never move.
+    private val lock = ReentrantReadWriteLock()
+    private val dataList = ArrayList<FacilityMapLayerData?>()
+    private val slotById = HashMap<Int, Int>()
+    private val freeSlots = ArrayDeque<Int>()
+    private val kindCounts = HashMap<Int, Int>()
+    private val tileIndex: QuadkeyIndex
+    // Cluster by facility kind, so a cluster shows the icon of its members
+    // and can be hidden with its kind
+    private val clusterIndex: MarkerClusterIndex
+
     init {
-        // Convert all markers to PointI and store data
+        val initialData = markers.distinctBy { it.facilityId }.map { createLayerData(it) }
+        for ((slot, data) in initialData.withIndex()) {
+            dataList.add(data)
+            slotById[data.marker.facilityId] = slot
+            kindCounts.merge(data.kindId, 1, Int::plus)
+        }
+        val x31 = IntArray(initialData.size) { initialData[it].x31 }
+        val y31 = IntArray(initialData.size) { initialData[it].y31 }
+        val kinds = IntArray(initialData.size) { initialData[it].kindId }
+        tileIndex = QuadkeyIndex(x31, y31)
+        clusterIndex = MarkerClusterIndex(x31, y31, kinds, CLUSTER_MIN_ZOOM, CLUSTER_MAX_ZOOM)
+    }
+
+    /**
+     * Apply new markers, diffed by facilityId
+     * Only new, changed and removed markers touch the indexes, each in its own slot
+     * Called on the main thread, the only writer, so the diff itself reads without locking
+     * Returns true if anything changed and tiles need to be refreshed
+     */
+    fun updateMarkers(markers: List<FacilityMarker>): Boolean {
+        val changed = ArrayList<FacilityMapLayerData>()
+        val seenIds = HashSet<Int>(markers.size * 2)
         for (marker in markers) {
-            try {
-                val latField = marker?.javaClass?.getDeclaredField("latitude")
-                latField?.isAccessible = true
-                val lat = latField?.get(marker) as? Double ?: continue
-
-                val lonField = marker.javaClass.getDeclaredField("longitude")
-                lonField.isAccessible = true
-                val lon = lonField.get(marker) as? Double ?: continue
-
-                var name: String? = null
-                try {
-                    val nameField = marker.javaClass.getDeclaredField("name")
-                    nameField.isAccessible = true
-                    name = nameField.get(marker) as? String
-                } catch (_: Exception) {
-                }
+            if (!seenIds.add(marker.facilityId)) continue
+            val current = slotById[marker.facilityId]?.let { dataList[it] }
+            if (current == null || current.marker != marker) {
+                // Icons and coordinates are prepared before taking the lock
+                changed.add(createLayerData(marker))
+            }
+        }
+        val removedIds = slotById.keys.filter { it !in seenIds }
+        if (changed.isEmpty() && removedIds.isEmpty()) {
+            return false
+        }
 
-                var facilityKind: String? = null
-                try {
-                    val kindField = marker.javaClass.getDeclaredField("facilityKind")
-                    kindField.isAccessible = true
-                    facilityKind = kindField.get(marker) as? String
-                } catch (_: Exception) {
+        var added = 0
+        lock.write {
+            for (id in removedIds) {
+                val slot = slotById.remove(id) ?: continue
+                removeFromIndexes(slot)
+                dataList[slot] = null
+                freeSlots.addLast(slot)
+            }
+            for (data in changed) {
+                val slot = slotById[data.marker.facilityId]
+                if (slot != null) {
+                    removeFromIndexes(slot)
+                    addToIndexes(slot, data)
+                } else {
+                    val newSlot = freeSlots.removeFirstOrNull() ?: dataList.size.also { dataList.add(null) }
+                    slotById[data.marker.facilityId] = newSlot
+                    addToIndexes(newSlot, data)
+                    added++
                 }
-
-                // Convert lat/lon to PointI (31-bit)
-                val x31 = MapUtils.get31TileNumberX(lon)
-                val y31 = MapUtils.get31TileNumberY(lat)
-                points31.add(PointI(x31, y31))
-
-                // Store data for marker
-                mapLayerDataList.add(
-                    FacilityMapLayerData(
-                        lat = lat,
-                        lon = lon,
-                        name = name ?: "",
-                        facilityKind = facilityKind ?: "facility"
-                    )
-                )
-            } catch (_: Exception) {
-                // Skip invalid markers
             }
         }
+        Log.d(TAG, "Markers updated: +$added ~${changed.size - added} -${removedIds.size}")
+        return true
+    }
+
+    private fun addToIndexes(slot: Int, data: FacilityMapLayerData) {
+        dataList[slot] = data
+        tileIndex.put(slot, data.x31, data.y31)
+        clusterIndex.add(slot, data.x31, data.y31, data.kindId)
+        kindCounts.merge(data.kindId, 1, Int::plus)
+    }
+
+    private fun removeFromIndexes(slot: Int) {
+        val data = dataList[slot] ?: return
+        tileIndex.remove(slot)
+        clusterIndex.remove(slot, data.x31, data.y31, data.kindId)
+        kindCounts.merge(data.kindId, -1) { count, delta -> (count + delta).takeIf { it > 0 } }
+    }
+
+    /**
+     * Show or hide markers of facility kind
+     * Only the kind's bit is flipped, returns true if markers of that kind are loaded
+     * and tiles need to be obtained again
+     */
+    fun setKindVisible(facilityKind: String, visible: Boolean): Boolean {
+        val kindId = kindId(facilityKind.lowercase())
+        val current = hiddenKindIds
+        if (current[kindId] != visible) return false
+
+        // Bits per kind, not per marker, the copy does not grow with marker count
+        val hidden = current.clone() as BitSet
+        hidden.set(kindId, !visible)
+        hiddenKindIds = hidden
+        return lock.read { kindId in kindCounts }
+    }
+
+    private fun kindId(kind: String): Int {
+        return synchronized(kindIds) {
+            kindIds.getOrPut(kind) { kindIds.size }
+        }
+    }
+
+    /**
+     * Selectable marker nearest to [x31], [y31] within [radius31], as displayed at [zoom]
+     * At clustered zooms only single-marker clusters can be selected
+     */
+    fun findMarker(x31: Int, y31: Int, radius31: Int, zoom: Int): FacilityMarker? = lock.read {
+        val hidden = hiddenKindIds
+        if (clusterIndex.hasLevel(zoom)) {
+            val cluster = clusterIndex.findNearest(zoom, x31, y31, radius31) {
+                !hidden[it.kind]
+            } ?: return@read null
+            return@read if (cluster.count == 1) dataList[cluster.firstIndex]?.marker else null
+        }
+        if (zoom < minZoom.swigValue()) {
+            return@read null
+        }
+
+        val index = tileIndex.findNearest(x31, y31, radius31) {
+            val data = dataList[it]
+            data != null && !hidden[data.kindId] && data.marker.facility != null
+        }
+        if (index >= 0) dataList[index]?.marker else null
+    }
+
+    private fun createLayerData(marker: FacilityMarker): FacilityMapLayerData {
+        val iconRes = getIconForFacilityKind(marker.facilityKind)
+        // Resolve icons once per kind
+        if (iconRes != 0 && !bigImages.containsKey(iconRes)) {
+            createIconImage(iconRes, FULL_ICON_SIZE_DP)?.let { bigImages[iconRes] = it }
+            createIconImage(iconRes, SMALL_ICON_SIZE_DP)?.let { smallImages[iconRes] = it }
+        }
+
+        // Store data for marker with 31-bit coordinates
+        return FacilityMapLayerData(
+            marker = marker,
+            kindId = kindId(marker.facilityKind.lowercase()),
+            x31 = MapUtils.get31TileNumberX(marker.longitude),
+            y31 = MapUtils.get31TileNumberY(marker.latitude),
+            iconRes = iconRes
+        )
     }
 
     fun drawSymbols(mapRenderer: MapRendererView) {
@@ -191,6 +443,17 @@ class FacilityTileProvider(
         )
     }
 
+    /**
+     * Re-register the same provider so the engine obtains tiles again
+     * The engine has no call to invalidate tiles of a registered tiled collection provider,
+     * OsmAnd's own favorites and POI layers reload changed data the same way
+     */
+    fun refreshSymbols(mapRenderer: MapRendererView) {
+        val instance = providerInstance ?: return
+        mapRenderer.removeSymbolsProvider(instance)
+        mapRenderer.addSymbolsProvider(MapRendererContext.FAVORITES_SECTION, instance)
+    }
+
     fun clearSymbols(mapRenderer: MapRendererView) {
         providerInstance?.let {
             mapRenderer.removeSymbolsProvider(it)
@@ -203,11 +466,13 @@ class FacilityTileProvider(
     }
 
     override fun getPoints31(): QListPointI {
-        return points31
+        // Empty - markers are served per tile by getTilePoints()
+        return emptyPoints31
     }
 
     override fun getHiddenPoints(): QListPointI {
-        return QListPointI()
+        // Cached empty list - hidden kinds are already skipped by getTilePoints()
+        return emptyPoints31
     }
 
     override fun shouldShowCaptions(): Boolean {
@@ -231,55 +496,66 @@ class FacilityTileProvider(
     }
 
     override fun getImageBitmap(index: Int, isFullSize: Boolean): SingleSkImage {
-        if (index >= mapLayerDataList.size) {
-            return SwigUtilities.nullSkImage()
-        }
-
-        val data = mapLayerDataList[index]
-        val key = data.getKey()
-
-        val bitmap = if (isFullSize) {
-            bigBitmapCache.getOrPut(key) {
-                createMarkerBitmap(data, true)
-            }
-        } else {
-            smallBitmapCache.getOrPut(key) {
-                createMarkerBitmap(data, false)
-            }
-        }
-
-        return bitmap?.let { NativeUtilities.createSkImageFromBitmap(it) }
-            ?: SwigUtilities.nullSkImage()
+        val data = lock.read { dataList.getOrNull(index) } ?: return SwigUtilities.nullSkImage()
+        return getIconImage(data.iconRes, isFullSize)
     }
 
-    @SuppressLint("DiscouragedApi")
-    private fun createMarkerBitmap(data: FacilityMapLayerData, isFullSize: Boolean): Bitmap? {
-        val iconName = getIconNameForFacilityKind(data.facilityKind)
-        if (iconName == null) return null
-
-        val resId = context.resources.getIdentifier(iconName, "drawable", context.packageName)
-        if (resId == 0) return null
+    private fun getIconImage(@DrawableRes iconRes: Int, isFullSize: Boolean): SingleSkImage {
+        val image = if (isFullSize) bigImages[iconRes] else smallImages[iconRes]
+        return image ?: SwigUtilities.nullSkImage()
+    }
 
-        val drawable = ContextCompat.getDrawable(context, resId) ?: return null
-        val size = if (isFullSize) 48 else 24 // Adjust sizes as needed
+    private fun createIconImage(@DrawableRes iconRes: Int, sizeDp: Int): SingleSkImage? {
+        val drawable = ContextCompat.getDrawable(context, iconRes) ?: return null
+        val size = (sizeDp * density).toInt().coerceAtLeast(1)
 
-        return createBitmap(size, size).apply {
+        val bitmap = createBitmap(size, size).apply {
             val canvas = Canvas(this)
             drawable.setBounds(0, 0, size, size)
             drawable.draw(canvas)
         }
+        return NativeUtilities.createSkImageFromBitmap(bitmap)
     }
 
     override fun getCaption(index: Int): String {
-        if (index >= mapLayerDataList.size) {
-            return ""
-        }
-        return mapLayerDataList[index].name
+        return lock.read { dataList.getOrNull(index)?.marker?.name } ?: ""
     }
 
     override fun getTilePoints(tileId: TileId, zoom: ZoomLevel): QListMapTiledCollectionPoint {
-        // Return empty - use getPoints31() instead of tile-based
-        return QListMapTiledCollectionPoint()
+        val result = QListMapTiledCollectionPoint()
+        if (zoom.swigValue() < minZoom.swigValue()) {
+            return result
+        }
+
+        val hidden = hiddenKindIds
+        val zoomValue = zoom.swigValue()
+        lock.read {
+            if (clusterIndex.hasLevel(zoomValue)) {
+                for (cluster in clusterIndex.queryTile(tileId.x, tileId.y, zoomValue)) {
+                    // All members share the kind, so the cluster is hidden with it
+                    if (hidden[cluster.kind]) continue
+                    val data = dataList[cluster.firstIndex] ?: continue
+                    val point = if (cluster.count == 1) {
+                        FacilityCollectionPoint(data)
+                    } else {
+                        ClusterCollectionPoint(cluster, data.iconRes)
+                    }
+                    result.add(point.instantiateProxy(true))
+                    point.swigReleaseOwnership()
+                }
+                return result
+            }
+
+            // Only markers inside requested tile
+            for (index in tileIndex.queryTile(tileId.x, tileId.y, zoomValue)) {
+                val data = dataList[index] ?: continue
+                if (hidden[data.kindId]) continue
+                val point = FacilityCollectionPoint(data)
+                result.add(point.instantiateProxy(true))
+                point.swigReleaseOwnership()
+            }
+        }
+        return result
     }
 
     override fun getMinZoom(): ZoomLevel {
@@ -291,7 +567,8 @@ class FacilityTileProvider(
     }
 
     override fun supportsNaturalObtainDataAsync(): Boolean {
-        return false
+        // Tile points and bitmaps are safe to prepare on engine worker threads
+        return true
     }
 
     override fun getPinIconVerticalAlignment(): MapMarker.PinIconVerticalAlignment {
@@ -306,34 +583,75 @@ class FacilityTileProvider(
         return offset
     }
 
-    private fun getIconNameForFacilityKind(facilityKind: String): String? {
+    @DrawableRes
+    private fun getIconForFacilityKind(facilityKind: String): Int {
         return when (facilityKind.lowercase()) {
-            "hotel", "inn" -> "hotel"
-            "restaurant" -> "restaurant"
-            "facility" -> "facility"
-            "shop", "shopping" -> "shop"
-            "beach", "swim" -> "beach"
-            "lift" -> "lift"
-            "golf" -> "golf"
-            "parking" -> "parking"
-            "chapel" -> "chapel"
-            "amusement" -> "facility"
-            "blocked" -> "blocked"
-            "arrow" -> "arrow"
-            else -> null
+            "hotel", "inn" -> R.drawable.hotel
+            "restaurant" -> R.drawable.restaurant
+            "facility" -> R.drawable.facility
+            "shop", "shopping" -> R.drawable.shop
+            "beach", "swim" -> R.drawable.beach
+            "lift" -> R.drawable.lift
+            "golf" -> R.drawable.golf
+            "parking" -> R.drawable.parking
+            "chapel" -> R.drawable.chapel
+            "amusement" -> R.drawable.facility
+            "blocked" -> R.drawable.blocked
+            "arrow" -> R.drawable.arrow
+            else -> 0
         }
     }
 
-    private data class FacilityMapLayerData(
-        val lat: Double,
-        val lon: Double,
-        val name: String,
-        val facilityKind: String
-    ) {
-        fun getKey(): Long {
-            return (lat * 1000000).toLong() + (lon * 1000).toLong() + facilityKind.hashCode()
-                .toLong()
+    /**
+     * Single marker handed to the engine by getTilePoints()
+     */
+    private inner class FacilityCollectionPoint(private val data: FacilityMapLayerData) :
+        interface_MapTiledCollectionPoint() {
+
+        private val point31 = PointI(data.x31, data.y31)
+
+        override fun getPoint31(): PointI {
+            return point31
+        }
+
+        override fun getImageBitmap(isFullSize: Boolean): SingleSkImage {
+            return getIconImage(data.iconRes, isFullSize)
+        }
+
+        override fun getCaption(): String {
+            return data.marker.name
         }
     }
+
+    /**
+     * Cluster of same kind markers, drawn with the kind icon and member count as caption
+     */
+    private inner class ClusterCollectionPoint(
+        private val cluster: MarkerClusterIndex.Cluster,
+        @DrawableRes private val iconRes: Int
+    ) : interface_MapTiledCollectionPoint() {
+
+        private val point31 = PointI(cluster.x31, cluster.y31)
+
+        override fun getPoint31(): PointI {
+            return point31
+        }
+
+        override fun getImageBitmap(isFullSize: Boolean): SingleSkImage {
+            return getIconImage(iconRes, isFullSize)
+        }
+
+        override fun getCaption(): String {
+            return cluster.count.toString()
+        }
+    }
+
+    private class FacilityMapLayerData(
+        val marker: FacilityMarker,
+        val kindId: Int,
+        val x31: Int,
+        val y31: Int,
+        @DrawableRes val iconRes: Int
+    )
 }
 
@@ -3,11 +3,15 @@ package com.resort_cloud.nansei.nansei_tablet.layers
 import android.content.Context
 import android.graphics.Canvas
 import android.util.Log
+import com.resort_cloud.nansei.nansei_tablet.data.model.RouteTrack
 import com.resort_cloud.nansei.nansei_tablet.managers.InternalRoutesDataManager
-import com.resort_cloud.nansei.nansei_tablet.utils.GpxParser
+import com.resort_cloud.nansei.nansei_tablet.utils.RouteGridIndex
+import com.resort_cloud.nansei.nansei_tablet.utils.RouteSimplifier.ZoomBand
 import net.osmand.core.android.MapRendererView
 import net.osmand.core.jni.PointI
 import net.osmand.core.jni.QVectorPointI
+import net.osmand.core.jni.VectorDouble
+import net.osmand.core.jni.VectorLine
 import net.osmand.core.jni.VectorLineBuilder
 import net.osmand.core.jni.VectorLinesCollection
 import net.osmand.data.RotatedTileBox
@@ -15,24 +19,78 @@ import net.osmand.plus.utils.NativeUtilities
 import net.osmand.plus.views.OsmandMapTileView
 import net.osmand.plus.views.layers.base.OsmandMapLayer
 import net.osmand.util.MapUtils
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicReference
 
 /**
  * Layer using VectorLine for smooth polyline rendering
  * Data is preloaded by InternalRoutesDataManager before map initialization
+ * Lines are kept per zoom band with simplified geometry, only the band matching
+ * the current zoom is built and registered with the renderer, other bands are
+ * built when zoom enters them
+ * Native geometry is built on a background thread, the drawing path only picks up
+ * finished collections
+ * Only tracks in grid buckets around the visible area are added to the collections
  */
 class InternalRoutesLayer(context: Context) : OsmandMapLayer(context) {
 
     private val TAG = "InternalRoutesLayer"
-    private val tracks = mutableListOf<GpxParser.GpxTrack>()
     private val dataManager = InternalRoutesDataManager.getInstance()
 
+    // Single thread building and diffing native lines, never the map drawing thread
+    private var geometryExecutor: ExecutorService? = null
+
+    // Built lines of the active band and track buckets per zoom band, only touched on the geometry thread
+    private val bandLines = HashMap<ZoomBand, BandLines>()
+    private val bandIndexes = HashMap<ZoomBand, RouteGridIndex>()
+    private var visibleCells: RouteGridIndex.CellRange? = null
+    private var activeBand: ZoomBand? = null
+
+    // Last band and bucket range requested from the render path
+    private var requestedBand: ZoomBand? = null
+    private var requestedCells: RouteGridIndex.CellRange? = null
+
+    // Lines published by the geometry thread for the render path
+    private val preparedLines = AtomicReference<Map<ZoomBand, BandLines>>(emptyMap())
+    private var activeLines: BandLines? = null
+
     // Separate collections to ensure strict drawing order (Z-index)
-    private var bgLinesCollection: VectorLinesCollection? = null // Blue background
-    private var fgLinesCollection: VectorLinesCollection? = null // White dashed foreground
+    private class BandLines(
+        val bgCollection: VectorLinesCollection, // White dashed line
+        val fgCollection: VectorLinesCollection // Blue line
+    ) {
+        // Native lines per track, so refreshed data only touches changed tracks
+        val trackLines = HashMap<RouteTrack.Key, TrackLines>()
+        var nextLineId = 0
+    }
+
+    private class TrackLines(
+        val bgLine: VectorLine,
+        val fgLine: VectorLine
+    )
+
+    // Colors
+    private val whiteColor by lazy { NativeUtilities.createFColorARGB(0xFFFFFFFF.toInt()) }
+    private val blueColor by lazy { NativeUtilities.createFColorARGB(0xFF669AFF.toInt()) }
+
+    // Dash Pattern: [Draw, Space, Draw, Space...]
+    // Increased scale for better visibility at map zoom levels
+    private val dashPattern by lazy {
+        VectorDouble().apply {
+            add(100.0) // Draw 100 pixels
+            add(100.0) // Space 100 pixels
+        }
+    }
+
+    // Tracks refreshed in background after the snapshot was shown
+    private val tracksUpdatedListener: () -> Unit = { reloadTracks() }
 
     override fun initLayer(view: OsmandMapTileView) {
         super.initLayer(view)
+        geometryExecutor = Executors.newSingleThreadExecutor()
         loadTracksFromManager()
+        dataManager.addTracksUpdatedListener(tracksUpdatedListener)
     }
 
     /**
@@ -42,27 +100,97 @@ class InternalRoutesLayer(context: Context) : OsmandMapLayer(context) {
     private fun loadTracksFromManager() {
         if (dataManager.isDataReady()) {
             // Data is already ready, load immediately
-            val loadedTracks = dataManager.getTracks()
-            tracks.clear()
-            tracks.addAll(loadedTracks)
-            Log.d(TAG, "✅ Loaded ${tracks.size} tracks from data manager (immediate)")
-            
-            // Trigger redraw if map is ready
-            view?.refreshMap()
+            val trackCount = applyTracks()
+            Log.d(TAG, "✅ Loaded $trackCount tracks from data manager (immediate)")
         } else {
             // Data not ready yet, register callback
             Log.d(TAG, "Data not ready yet, registering callback...")
             dataManager.onDataReady {
-                val loadedTracks = dataManager.getTracks()
-                tracks.clear()
-                tracks.addAll(loadedTracks)
-                Log.d(TAG, "✅ Loaded ${tracks.size} tracks from data manager (callback)")
-                
-                // Trigger redraw when data arrives
-                view?.refreshMap()
+                val trackCount = applyTracks()
+                Log.d(TAG, "✅ Loaded $trackCount tracks from data manager (callback)")
             }
         }
     }
+
+    /**
+     * Take tracks from data manager and hand them to the geometry thread
+     * Buckets of every band are indexed there, lines of the active band are diffed and published
+     * Returns number of tracks taken
+     */
+    private fun applyTracks(): Int {
+        val executor = geometryExecutor ?: return 0
+        val bandTracks = ZoomBand.entries.associateWith { dataManager.getTracks(it) }
+
+        executor.execute {
+            bandIndexes.clear()
+            for ((band, tracks) in bandTracks) {
+                bandIndexes[band] = RouteGridIndex(tracks)
+            }
+            syncActiveBand(executor)
+        }
+
+        return bandTracks[ZoomBand.DETAIL]?.size ?: 0
+    }
+
+    /**
+     * Sync lines of the active band with tracks in visible buckets and publish them
+     * Lines of a band left behind are dropped, the renderer keeps showing them until
+     * the new band is published
+     * Runs on the geometry thread
+     */
+    private fun syncActiveBand(executor: ExecutorService) {
+        try {
+            val cells = visibleCells ?: return
+            val band = activeBand ?: return
+            val index = bandIndexes[band] ?: return
+            bandLines.keys.retainAll { it == band }
+            val lines = bandLines.getOrPut(band) {
+                BandLines(VectorLinesCollection(), VectorLinesCollection())
+            }
+            syncVectorLines(lines, index.query(cells))
+            if (executor.isShutdown) return
+
+            preparedLines.set(mapOf(band to lines))
+            // Trigger redraw when lines are ready
+            view?.refreshMap()
+        } catch (e: Exception) {
+            Log.e(TAG, "Error building vector lines", e)
+        }
+    }
+
+    /**
+     * Request lines of [band] for buckets around the visible area when either changes
+     */
+    private fun requestVisibleLines(tileBox: RotatedTileBox, band: ZoomBand) {
+        val executor = geometryExecutor ?: return
+        val bounds = tileBox.latLonBounds ?: return
+
+        val left = MapUtils.get31TileNumberX(bounds.left)
+        val right = MapUtils.get31TileNumberX(bounds.right)
+        val top = MapUtils.get31TileNumberY(bounds.top)
+        val bottom = MapUtils.get31TileNumberY(bounds.bottom)
+
+        // Half a screen margin on each side, so short pans don't reach unloaded buckets
+        val marginX = (right.toLong() - left) / 2
+        val marginY = (bottom.toLong() - top) / 2
+        val cells = RouteGridIndex.cellRange(
+            clamp31(left - marginX),
+            clamp31(top - marginY),
+            clamp31(right + marginX),
+            clamp31(bottom + marginY)
+        )
+        if (cells == requestedCells && band == requestedBand) return
+
+        requestedCells = cells
+        requestedBand = band
+        executor.execute {
+            visibleCells = cells
+            activeBand = band
+            syncActiveBand(executor)
+        }
+    }
+
+    private fun clamp31(value: Long): Int = value.coerceIn(0L, Int.MAX_VALUE.toLong()).toInt()
     
     override fun onPrepareBufferImage(
         canvas: Canvas?,
@@ -77,83 +205,104 @@ class InternalRoutesLayer(context: Context) : OsmandMapLayer(context) {
             return
         }
 
-        // Initialize VectorLines only once
-        if (bgLinesCollection == null && tracks.isNotEmpty()) {
-            buildVectorLines(mapRenderer)
+        if (tileBox == null) return
+        val band = ZoomBand.forZoom(tileBox.zoom)
+        requestVisibleLines(tileBox, band)
+
+        // Cheap handoff of prepared lines, swapped once the new band is built
+        val lines = preparedLines.get()[band] ?: return
+        if (lines !== activeLines) {
+            activeLines?.let { removeFromRenderer(mapRenderer, it) }
+
+            // Add collections to renderer in order
+            // 1. Add Background first
+            mapRenderer.addSymbolsProvider(lines.bgCollection)
+            // 2. Add Foreground second (Draws on top)
+            mapRenderer.addSymbolsProvider(lines.fgCollection)
+            activeLines = lines
+
+            Log.d(TAG, "Showing ${band.name} routes")
         }
     }
 
-    private fun buildVectorLines(mapRenderer: MapRendererView) {
-        try {
-            val bgCollection = VectorLinesCollection()
-            val fgCollection = VectorLinesCollection()
-
-            var lineId = 0
-            val baseOrder = getBaseOrder()
-
-            // Colors
-            val whiteColor = NativeUtilities.createFColorARGB(0xFFFFFFFF.toInt())
-            val blueColor = NativeUtilities.createFColorARGB(0xFF669AFF.toInt())
-
-            // Dash Pattern: [Draw, Space, Draw, Space...]
-            // Increased scale for better visibility at map zoom levels
-            val dashPattern = net.osmand.core.jni.VectorDouble()
-            dashPattern.add(100.0) // Draw 100 pixels
-            dashPattern.add(100.0) // Space 100 pixels
-
-            for (track in tracks) {
-                for (segment in track.segments) {
-                    if (segment.points.size < 2) continue
-
-                    // Convert to native 31-bit coordinates
-                    val points31 = QVectorPointI()
-                    for (point in segment.points) {
-                        val x31 = MapUtils.get31TileNumberX(point.lon)
-                        val y31 = MapUtils.get31TileNumberY(point.lat)
-                        points31.add(PointI(x31, y31))
-                    }
-
-                    // 2. BACKGROUND LINE (blue, Dashed, Narrower)
-                    // Added to fgCollection (Strictly on top)
-                    val bgBuilder = VectorLineBuilder()
-                    bgBuilder.setBaseOrder(baseOrder + 10) // Ensure strictly higher order
-                        .setIsHidden(false)
-                        .setLineId(lineId++)
-                        .setLineWidth(18.0) // Narrower blue line
-                        .setPoints(points31)
-                        .setFillColor(blueColor)
-
-                    bgBuilder.buildAndAddToCollection(fgCollection)
-
-                    // 1. FOREGROUND LINE (white, Solid, Wide)
-                    // Added to bgCollection
-                    val fgBuilder = VectorLineBuilder()
-                    fgBuilder.setBaseOrder(baseOrder)
-                        .setIsHidden(false)
-                        .setLineId(lineId++)
-                        .setLineWidth(6.0) // Wide white background
-                        .setPoints(points31)
-                        .setFillColor(whiteColor)
-                        .setLineDash(dashPattern)
-
-                    fgBuilder.buildAndAddToCollection(bgCollection)
-
-                }
+    private fun removeFromRenderer(mapRenderer: MapRendererView, lines: BandLines) {
+        mapRenderer.removeSymbolsProvider(lines.bgCollection)
+        mapRenderer.removeSymbolsProvider(lines.fgCollection)
+    }
+
+    /**
+     * Diff tracks against lines already in the collections by track key
+     * Lines of removed or changed tracks are removed, new ones are added, the rest stay untouched
+     */
+    private fun syncVectorLines(lines: BandLines, tracks: List<RouteTrack>) {
+        val desired = HashMap<RouteTrack.Key, RouteTrack>(tracks.size * 2)
+        for (track in tracks) {
+            if (track.pointCount < 2) continue
+            desired[track.key] = track
+        }
+
+        var removed = 0
+        val iterator = lines.trackLines.entries.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (entry.key !in desired) {
+                lines.bgCollection.removeLine(entry.value.bgLine)
+                lines.fgCollection.removeLine(entry.value.fgLine)
+                iterator.remove()
+                removed++
             }
+        }
 
-            // Add collections to renderer in order
-            // 1. Add Background first
-            mapRenderer.addSymbolsProvider(bgCollection)
-            bgLinesCollection = bgCollection
+        var added = 0
+        for ((key, track) in desired) {
+            if (key in lines.trackLines) continue
+            val trackLines = addTrackLines(lines, track) ?: continue
+            lines.trackLines[key] = trackLines
+            added++
+        }
 
-            // 2. Add Foreground second (Draws on top)
-            mapRenderer.addSymbolsProvider(fgCollection)
-            fgLinesCollection = fgCollection
+        Log.d(TAG, "✅ Vector lines synced: +$added -$removed, ${lines.trackLines.size} segments rendered with dual-pass")
+    }
 
-            Log.d(TAG, "✅ Vector lines built: ${lineId / 2} segments rendered with dual-pass")
-        } catch (e: Exception) {
-            Log.e(TAG, "Error building vector lines", e)
+    private fun addTrackLines(lines: BandLines, track: RouteTrack): TrackLines? {
+        val baseOrder = getBaseOrder()
+
+        // Tracks already carry native 31-bit coordinates
+        val points31 = QVectorPointI()
+        for (i in 0 until track.pointCount) {
+            points31.add(PointI(track.getX31(i), track.getY31(i)))
         }
+
+        // 2. BACKGROUND LINE (blue, Dashed, Narrower)
+        // Added to fgCollection (Strictly on top)
+        val bgBuilder = VectorLineBuilder()
+        bgBuilder.setBaseOrder(baseOrder + 10) // Ensure strictly higher order
+            .setIsHidden(false)
+            .setLineId(lines.nextLineId++)
+            .setLineWidth(18.0) // Narrower blue line
+            .setPoints(points31)
+            .setFillColor(blueColor)
+
+        val fgLine = bgBuilder.buildAndAddToCollection(lines.fgCollection) ?: return null
+
+        // 1. FOREGROUND LINE (white, Solid, Wide)
+        // Added to bgCollection
+        val fgBuilder = VectorLineBuilder()
+        fgBuilder.setBaseOrder(baseOrder)
+            .setIsHidden(false)
+            .setLineId(lines.nextLineId++)
+            .setLineWidth(6.0) // Wide white background
+            .setPoints(points31)
+            .setFillColor(whiteColor)
+            .setLineDash(dashPattern)
+
+        val bgLine = fgBuilder.buildAndAddToCollection(lines.bgCollection)
+        if (bgLine == null) {
+            lines.fgCollection.removeLine(fgLine)
+            return null
+        }
+
+        return TrackLines(bgLine, fgLine)
     }
 
     override fun onDraw(
@@ -170,36 +319,34 @@ class InternalRoutesLayer(context: Context) : OsmandMapLayer(context) {
 
     override fun destroyLayer() {
         super.destroyLayer()
+        dataManager.removeTracksUpdatedListener(tracksUpdatedListener)
+
+        // Pending geometry work finishes before built lines are dropped
+        geometryExecutor?.let { executor ->
+            executor.execute {
+                bandLines.clear()
+                bandIndexes.clear()
+                visibleCells = null
+                activeBand = null
+            }
+            executor.shutdown()
+        }
+        geometryExecutor = null
 
         val mapRenderer = getMapRenderer()
-        if (mapRenderer != null) {
-            if (bgLinesCollection != null) mapRenderer.removeSymbolsProvider(bgLinesCollection)
-            if (fgLinesCollection != null) mapRenderer.removeSymbolsProvider(fgLinesCollection)
+        val lines = activeLines
+        if (mapRenderer != null && lines != null) {
+            removeFromRenderer(mapRenderer, lines)
         }
-
-        bgLinesCollection = null
-        fgLinesCollection = null
-        tracks.clear()
+        activeLines = null
+        requestedCells = null
+        requestedBand = null
+        preparedLines.set(emptyMap())
     }
 
     fun reloadTracks() {
-        val mapRenderer = getMapRenderer()
-        if (mapRenderer != null) {
-            if (bgLinesCollection != null) mapRenderer.removeSymbolsProvider(bgLinesCollection)
-            if (fgLinesCollection != null) mapRenderer.removeSymbolsProvider(fgLinesCollection)
-        }
-
-        bgLinesCollection = null
-        fgLinesCollection = null
-        
-        // Reload from data manager
+        // Reload from data manager, built bands are diffed in place without leaving the renderer
         loadTracksFromManager()
-
-        if (mapRenderer != null && tracks.isNotEmpty()) {
-            buildVectorLines(mapRenderer)
-        }
-
-        view?.refreshMap()
     }
 }
 
@@ -2,14 +2,18 @@ package com.resort_cloud.nansei.nansei_tablet.managers
 
 import android.content.Context
 import android.util.Log
+import com.resort_cloud.nansei.nansei_tablet.data.model.RouteTrack
 import com.resort_cloud.nansei.nansei_tablet.services.OsmDataService
-import com.resort_cloud.nansei.nansei_tablet.utils.GpxParser
 import com.resort_cloud.nansei.nansei_tablet.utils.OsmParser
+import com.resort_cloud.nansei.nansei_tablet.utils.OsmWayStitcher
+import com.resort_cloud.nansei.nansei_tablet.utils.RouteSimplifier
+import com.resort_cloud.nansei.nansei_tablet.utils.RouteSnapshot
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
+import java.io.File
 
 /**
  * Manager to preload and cache internal routes data
@@ -19,6 +23,7 @@ class InternalRoutesDataManager private constructor() {
     
     companion object {
         private const val TAG = "InternalRoutesDataManager"
+        private const val SNAPSHOT_FILE_NAME = "internal_routes.snapshot"
         
         @Volatile
         private var instance: InternalRoutesDataManager? = null
@@ -31,7 +36,10 @@ class InternalRoutesDataManager private constructor() {
     }
     
     // Cached tracks data
-    private val tracks = mutableListOf<GpxParser.GpxTrack>()
+    private val tracks = mutableListOf<RouteTrack>()
+    
+    // Simplified tracks per zoom band, guarded by tracks lock
+    private val bandTracks = HashMap<RouteSimplifier.ZoomBand, List<RouteTrack>>()
     
     // Loading state
     @Volatile
@@ -45,9 +53,17 @@ class InternalRoutesDataManager private constructor() {
     // Callbacks for when data is ready
     private val dataReadyCallbacks = mutableListOf<() -> Unit>()
     
+    // Listeners for tracks replaced after initial load (e.g. snapshot refreshed from network)
+    private val tracksUpdatedListeners = mutableListOf<() -> Unit>()
+    
     /**
      * Preload routes data in background
      * This should be called early (e.g., in Activity onCreate)
+     *
+     * Tracks are served from the binary snapshot first, OSM XML is only parsed
+     * to rebuild the snapshot or when Overpass returns fresh data
+     * A snapshot with its network is refreshed from an Overpass diff, so only edits are
+     * downloaded and the layer re-emits only tracks whose key changed
      */
     fun preloadData(context: Context) {
         if (isLoaded || isLoading) {
@@ -58,63 +74,119 @@ class InternalRoutesDataManager private constructor() {
         isLoading = true
         Log.d(TAG, "Starting data preload...")
         
+        val appContext = context.applicationContext
         loadJob = CoroutineScope(Dispatchers.IO).launch {
             try {
                 // Initialize services
-                val osmDataService = OsmDataService(context)
+                val osmDataService = OsmDataService(appContext)
                 val osmParser = OsmParser()
+                val snapshotFile = File(appContext.filesDir, SNAPSHOT_FILE_NAME)
                 
-                // Fetch OSM data (online or offline)
-                val osmXml = osmDataService.fetchOsmData()
-                
-                if (osmXml != null) {
-                    // Parse OSM XML
-                    val osmData = osmParser.parseOsmXml(osmXml)
-                    
-                    // Convert to polylines
-                    val polylines = osmParser.waysToPolylines(osmData)
+                // 1. Instant path: processed tracks from snapshot
+                val snapshot = RouteSnapshot.read(snapshotFile)
+                val snapshotTracks = snapshot?.tracks
+                if (snapshotTracks != null) {
+                    updateTracks(snapshotTracks)
+                    Log.d(TAG, "✅ Preloaded ${snapshotTracks.size} OSM tracks from snapshot")
                     
-                    if (polylines.isNotEmpty()) {
-                        // Convert to GPX track format
-                        val newTracks = mutableListOf<GpxParser.GpxTrack>()
-                        for ((index, polyline) in polylines.withIndex()) {
-                            if (polyline.isEmpty()) continue
-                            
-                            val trackPoints = polyline.map { (lat, lon) ->
-                                GpxParser.TrackPoint(lat, lon)
+                    isLoaded = true
+                    withContext(Dispatchers.Main) {
+                        notifyDataReady()
+                    }
+                }
+                
+                // 2. Incremental path: apply changes since the snapshot's data timestamp
+                val network = snapshot?.network
+                val osmBase = network?.osmBase
+                val changedData = if (network != null && osmBase != null) {
+                    val change = osmDataService.fetchOsmChange(osmBase)?.use { stream ->
+                        osmParser.parseOsmChange(stream)
+                    }
+                    when {
+                        change == null -> null
+                        change.isEmpty -> {
+                            Log.d(TAG, "No route changes since $osmBase")
+                            // Move the timestamp forward so the next diff window stays short,
+                            // an unchanged timestamp leaves the snapshot untouched
+                            if (change.osmBase != null && change.osmBase != osmBase && snapshotTracks != null) {
+                                RouteSnapshot.write(
+                                    snapshotFile,
+                                    snapshotTracks,
+                                    OsmParser.PackedOsmData(network.nodes, network.ways, change.osmBase)
+                                )
                             }
-                            
-                            val segment = GpxParser.TrackSegment(trackPoints)
-                            val track = GpxParser.GpxTrack(
-                                name = "OSM Way $index",
-                                segments = listOf(segment)
-                            )
-                            
-                            newTracks.add(track)
+                            network
                         }
+                        else -> osmParser.applyChange(network, change, RouteTrack.RENDER_TAGS)
+                    }
+                } else {
+                    null
+                }
+                
+                // 3. Rebuild path: with a snapshot only fresh network data is parsed,
+                // otherwise fall back to the offline cache or bundled export
+                val osmData = if (changedData != null) {
+                    changedData.takeIf { it !== network }
+                } else {
+                    val osmSource = if (snapshotTracks != null) {
+                        osmDataService.refreshOsmData()
+                    } else {
+                        osmDataService.fetchOsmData()
+                    }
+                    // One stream per tile, merged before stitching so ways are not duplicated
+                    osmSource?.let { source ->
+                        val merged = osmParser.mergeOsm(source.streams.map { stream -> stream.use { osmParser.parseOsm(it) } })
+                        // Only rendered tags are kept, the network is stored in the snapshot
+                        OsmParser.PackedOsmData(
+                            merged.nodes,
+                            merged.ways.map { way ->
+                                OsmParser.PackedWay(way.id, way.nodeRefs, way.tags.filterKeys { it in RouteTrack.RENDER_TAGS })
+                            },
+                            // Without a timestamp the next run refreshes tiles instead of
+                            // diffing the whole area from partial data
+                            if (source.isComplete) merged.osmBase else null
+                        )
+                    }
+                }
+                
+                if (osmData != null) {
+                    // Merge short connected ways into long lines before building tracks
+                    val stitchedData = OsmWayStitcher.stitch(osmData, RouteTrack.RENDER_TAGS)
+                    Log.d(TAG, "Route lines: ${osmData.ways.size} ways -> ${stitchedData.ways.size} after stitching")
+                    val newTracks = buildTracks(osmParser, stitchedData)
+                    
+                    if (newTracks.isNotEmpty()) {
+                        // Keys are way id plus geometry hash, unchanged tracks keep their key
+                        val previousKeys = snapshotTracks?.mapTo(HashSet()) { it.key } ?: emptySet()
+                        val addedTracks = newTracks.count { it.key !in previousKeys }
+                        val removedTracks = previousKeys.size - (newTracks.size - addedTracks)
+                        updateTracks(newTracks)
+                        RouteSnapshot.write(snapshotFile, newTracks, osmData)
+                        Log.d(TAG, "✅ Preloaded ${newTracks.size} OSM tracks, $addedTracks new, $removedTracks removed")
                         
-                        // Update cached tracks
-                        synchronized(tracks) {
-                            tracks.clear()
-                            tracks.addAll(newTracks)
+                        if (snapshotTracks != null && (addedTracks > 0 || removedTracks > 0)) {
+                            withContext(Dispatchers.Main) {
+                                notifyTracksUpdated()
+                            }
                         }
-                        
-                        Log.d(TAG, "✅ Preloaded ${tracks.size} OSM tracks")
                     } else {
                         Log.w(TAG, "No OSM polylines found during preload")
                     }
-                } else {
+                } else if (snapshotTracks == null) {
                     Log.w(TAG, "No OSM data available during preload")
                 }
                 
-                isLoaded = true
                 isLoading = false
                 
-                // Notify callbacks on main thread
-                withContext(Dispatchers.Main) {
-                    notifyDataReady()
+                if (!isLoaded) {
+                    isLoaded = true
+                    
+                    // Notify callbacks on main thread
+                    withContext(Dispatchers.Main) {
+                        notifyDataReady()
+                    }
                 }
-                
+            
             } catch (e: Exception) {
                 Log.e(TAG, "Error preloading OSM tracks", e)
                 isLoading = false
@@ -123,12 +195,54 @@ class InternalRoutesDataManager private constructor() {
     }
     
     /**
-     * Get cached tracks (thread-safe)
+     * Convert parsed OSM ways to tracks with 31-bit coordinates and render tags
+     * Points are sliced straight out of the packed polyline buffer
+     */
+    private fun buildTracks(osmParser: OsmParser, osmData: OsmParser.PackedOsmData): List<RouteTrack> {
+        val polylines = osmParser.waysToPackedPolylines(osmData)
+        val newTracks = ArrayList<RouteTrack>(polylines.size)
+        
+        for (i in 0 until polylines.size) {
+            val way = osmData.ways[polylines.wayIndices[i]]
+            val tags = way.tags.filterKeys { it in RouteTrack.RENDER_TAGS }
+            newTracks.add(RouteTrack(way.id, tags, polylines.copyPoints31(i)))
+        }
+        
+        return newTracks
+    }
+    
+    /**
+     * Replace cached tracks and precompute their simplified level of detail
+     * Always called on a background thread, so the layer only swaps prepared geometry
+     */
+    private fun updateTracks(newTracks: List<RouteTrack>) {
+        val levels = buildLevels(newTracks)
+        synchronized(tracks) {
+            tracks.clear()
+            tracks.addAll(newTracks)
+            bandTracks.clear()
+            bandTracks.putAll(levels)
+        }
+    }
+    
+    private fun buildLevels(newTracks: List<RouteTrack>): Map<RouteSimplifier.ZoomBand, List<RouteTrack>> {
+        val rawPoints = newTracks.sumOf { it.pointCount }
+        val levels = HashMap<RouteSimplifier.ZoomBand, List<RouteTrack>>()
+        for (band in RouteSimplifier.ZoomBand.entries) {
+            val simplified = newTracks.map { RouteSimplifier.simplify(it, band) }
+            levels[band] = simplified
+            Log.d(TAG, "LOD ${band.name}: $rawPoints -> ${simplified.sumOf { it.pointCount }} points")
+        }
+        return levels
+    }
+    
+    /**
+     * Get cached tracks simplified for zoom band (thread-safe)
      * Returns empty list if data not ready yet
      */
-    fun getTracks(): List<GpxParser.GpxTrack> {
+    fun getTracks(band: RouteSimplifier.ZoomBand): List<RouteTrack> {
         return synchronized(tracks) {
-            tracks.toList()
+            bandTracks[band] ?: tracks.toList()
         }
     }
     
@@ -151,6 +265,21 @@ class InternalRoutesDataManager private constructor() {
         }
     }
     
+    /**
+     * Register listener to be notified on main thread when tracks are replaced after initial load
+     */
+    fun addTracksUpdatedListener(listener: () -> Unit) {
+        synchronized(tracksUpdatedListeners) {
+            tracksUpdatedListeners.add(listener)
+        }
+    }
+    
+    fun removeTracksUpdatedListener(listener: () -> Unit) {
+        synchronized(tracksUpdatedListeners) {
+            tracksUpdatedListeners.remove(listener)
+        }
+    }
+    
     /**
      * Notify all registered callbacks that data is ready
      */
@@ -161,6 +290,13 @@ class InternalRoutesDataManager private constructor() {
         }
     }
     
+    private fun notifyTracksUpdated() {
+        val listeners = synchronized(tracksUpdatedListeners) {
+            tracksUpdatedListeners.toList()
+        }
+        listeners.forEach { it() }
+    }
+    
     /**
      * Clear cached data and cancel loading
      */
@@ -168,6 +304,7 @@ class InternalRoutesDataManager private constructor() {
         loadJob?.cancel()
         synchronized(tracks) {
             tracks.clear()
+            bandTracks.clear()
         }
         synchronized(dataReadyCallbacks) {
             dataReadyCallbacks.clear()
@@ -2,56 +2,170 @@ package com.resort_cloud.nansei.nansei_tablet.services
 
 import android.content.Context
 import android.util.Log
+import com.resort_cloud.nansei.nansei_tablet.utils.AtomicCacheFile
+import com.resort_cloud.nansei.nansei_tablet.utils.QuadkeyIndex
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withContext
+import net.osmand.util.MapUtils
+import java.io.ByteArrayOutputStream
 import java.io.File
-import java.io.FileOutputStream
+import java.io.InputStream
 import java.net.HttpURLConnection
 import java.net.URL
+import java.security.MessageDigest
+import java.util.Properties
+import java.util.zip.GZIPInputStream
 
 /**
  * Service to fetch OSM data from Overpass API or load from offline cache
+ * The area of interest is split into quadkey tiles, each fetched with its own query
+ * and cached in its own file, so only stale tiles are requested again
+ * Downloads are revalidated: ETag / Last-Modified are sent back when the server provided them,
+ * and the SHA-256 of the body is compared with the cached one, so unchanged data is not re-parsed
+ * The hash leaves out the Overpass header lines (generator, note, osm_base timestamp),
+ * which change on every request even when the data does not
  */
 class OsmDataService(private val context: Context) {
     
     companion object {
         private const val TAG = "OsmDataService"
         private const val OVERPASS_API_URL = "https://overpass-api.de/api/interpreter"
+        
+        // Single-file cache of earlier versions, read while no tile is cached yet
         private const val CACHE_FILE_NAME = "osm_golf_cart_routes.osm"
+        private const val TILE_CACHE_DIR = "osm_tiles"
+        private const val CHANGE_FILE_NAME = "osm_golf_cart_routes.adiff"
+        // Marks tiles updated since the last complete tile set was handed out
+        private const val TILE_PENDING_FILE_NAME = "pending"
+        
+        // Sidecar with validators of a cached response
+        private const val META_SUFFIX = ".meta"
+        private const val META_ETAG = "etag"
+        private const val META_LAST_MODIFIED = "lastModified"
+        private const val META_SHA256 = "sha256"
+        private const val META_FETCHED_AT = "fetchedAt"
+        
+        // Area of interest (golf cart routes), split into tiles of TILE_ZOOM (~1.2 km)
+        private const val AREA_MIN_LAT = 24.71
+        private const val AREA_MIN_LON = 125.31
+        private const val AREA_MAX_LAT = 24.73
+        private const val AREA_MAX_LON = 125.36
+        private const val TILE_ZOOM = 15
+        
+        // Tiles younger than this are served from cache without a request
+        private const val TILE_MAX_AGE_MS = 24 * 60 * 60 * 1000L
         
-        // Overpass QL query for golf cart routes
-        private const val OVERPASS_QUERY = """
-            [out:xml][timeout:125];
-            (
-              way["highway"="service"]["golf_cart"="yes"](24.71,125.31,24.73,125.36);
-            );
-            (._;>;);
-            out body;
-        """
+        // Overpass allows only a couple of concurrent slots per client
+        private const val MAX_PARALLEL_FETCHES = 2
+        
+        /**
+         * Overpass QL query for golf cart routes in a bounding box
+         * Ways crossing the box come back whole, with all their nodes
+         */
+        private fun overpassQuery(south: Double, west: Double, north: Double, east: Double): String {
+            return """
+                [out:xml][timeout:25];
+                (
+                  way["highway"="service"]["golf_cart"="yes"]($south,$west,$north,$east);
+                );
+                (._;>;);
+                out body;
+            """.trimIndent()
+        }
+        
+        /**
+         * Augmented diff of the golf cart routes in a bounding box since [osmBase]
+         * Ways leaving the result (deleted or retagged) come back as delete actions
+         */
+        private fun overpassChangeQuery(osmBase: String, south: Double, west: Double, north: Double, east: Double): String {
+            return """
+                [out:xml][timeout:25][adiff:"$osmBase"];
+                (
+                  way["highway"="service"]["golf_cart"="yes"]($south,$west,$north,$east);
+                );
+                (._;>;);
+                out body;
+            """.trimIndent()
+        }
+    }
+    
+    /**
+     * Quadkey tile of the area of interest with its own cache file
+     */
+    private inner class OsmTile(val tileX: Int, val tileY: Int) {
+        val quadkey = QuadkeyIndex.quadkey(tileX, tileY, TILE_ZOOM)
+        val cacheFile = File(File(context.filesDir, TILE_CACHE_DIR), "$quadkey.osm")
+        
+        fun query(): String {
+            val shift = 31 - TILE_ZOOM
+            val north = MapUtils.get31LatitudeY(tileY shl shift)
+            val south = MapUtils.get31LatitudeY((tileY + 1) shl shift)
+            val west = MapUtils.get31LongitudeX(tileX shl shift)
+            val east = MapUtils.get31LongitudeX((tileX + 1) shl shift)
+            return overpassQuery(south, west, north, east)
+        }
+    }
+    
+    /**
+     * Open streams over OSM data, one per tile (ways crossing tiles repeat)
+     * [isComplete] when they cover the whole area as of one refresh, only then may
+     * their osm_base serve as the base of area-wide change diffs
+     */
+    class OsmSource(
+        val streams: List<InputStream>,
+        val isComplete: Boolean
+    )
+    
+    private enum class FetchResult {
+        UPDATED,
+        UNCHANGED,
+        FAILED
+    }
+    
+    private val tiles: List<OsmTile> by lazy {
+        val shift = 31 - TILE_ZOOM
+        val minX = MapUtils.get31TileNumberX(AREA_MIN_LON) shr shift
+        val maxX = MapUtils.get31TileNumberX(AREA_MAX_LON) shr shift
+        val minY = MapUtils.get31TileNumberY(AREA_MAX_LAT) shr shift
+        val maxY = MapUtils.get31TileNumberY(AREA_MIN_LAT) shr shift
+        val result = ArrayList<OsmTile>()
+        for (tileX in minX..maxX) {
+            for (tileY in minY..maxY) {
+                result.add(OsmTile(tileX, tileY))
+            }
+        }
+        result
     }
     
+    private val pendingFile: File
+        get() = File(File(context.filesDir, TILE_CACHE_DIR), TILE_PENDING_FILE_NAME)
+    
     /**
      * Fetch OSM data - online if available, otherwise offline cache
+     * Returns open streams over the tile data, the caller is responsible for closing them
      */
-    suspend fun fetchOsmData(): String? = withContext(Dispatchers.IO) {
+    suspend fun fetchOsmData(): OsmSource? = withContext(Dispatchers.IO) {
         try {
             // Check network availability
             if (isNetworkAvailable()) {
-                Log.d(TAG, "Network available, fetching from Overpass API...")
-                val onlineData = fetchFromOverpassAPI()
-                if (onlineData != null) {
-                    // Save to cache for offline use
-                    saveToCache(onlineData)
-                    Log.d(TAG, "✅ OSM data fetched and cached")
-                    return@withContext onlineData
-                }
+                Log.d(TAG, "Network available, fetching stale tiles from Overpass API...")
+                // Response bodies go straight to the tile files, never into memory
+                fetchStaleTiles()
             }
             
-            // Fallback to offline cache
+            // Read from offline cache (just refreshed if online)
             Log.d(TAG, "Loading from offline cache...")
             val offlineData = loadFromCache()
             if (offlineData != null) {
-                Log.d(TAG, "✅ OSM data loaded from cache")
+                Log.d(TAG, "✅ OSM data loaded from cache (${offlineData.streams.size} files, complete: ${offlineData.isComplete})")
+                if (offlineData.isComplete) {
+                    pendingFile.delete()
+                }
                 return@withContext offlineData
             }
             
@@ -65,77 +179,350 @@ class OsmDataService(private val context: Context) {
     }
     
     /**
-     * Fetch data from Overpass API
+     * Refresh stale tiles from Overpass API only, without falling back to the offline cache
+     * Returns open streams over all tiles once any tile changed, or null if nothing changed
+     * or some tile is missing or failed to refresh
+     * A partial refresh is never handed out: tiles updated so far stay pending until
+     * a later refresh gets every stale tile, so the data never mixes refresh rounds
+     */
+    suspend fun refreshOsmData(): OsmSource? = withContext(Dispatchers.IO) {
+        if (!isNetworkAvailable()) {
+            Log.d(TAG, "Network unavailable, skipping OSM refresh")
+            return@withContext null
+        }
+        val results = fetchStaleTiles()
+        if (FetchResult.FAILED in results) {
+            Log.w(TAG, "Some OSM tiles failed to refresh, keeping current data")
+            return@withContext null
+        }
+        if (!pendingFile.exists()) {
+            Log.d(TAG, "OSM tiles unchanged, skipping re-parse")
+            return@withContext null
+        }
+        val streams = openTiles()
+        if (streams.size < tiles.size) {
+            streams.forEach { it.close() }
+            Log.w(TAG, "Some OSM tiles missing, keeping current data")
+            return@withContext null
+        }
+        pendingFile.delete()
+        Log.d(TAG, "✅ OSM data refreshed from Overpass API")
+        OsmSource(streams, isComplete = true)
+    }
+    
+    /**
+     * Fetch changes of the route network since [osmBase] (Overpass data timestamp)
+     * Returns an open stream over the augmented diff, or null if it could not be fetched
      */
-    private fun fetchFromOverpassAPI(): String? {
+    suspend fun fetchOsmChange(osmBase: String): InputStream? = withContext(Dispatchers.IO) {
+        if (!isNetworkAvailable()) {
+            Log.d(TAG, "Network unavailable, skipping OSM change fetch")
+            return@withContext null
+        }
+        val changeFile = File(context.filesDir, CHANGE_FILE_NAME)
+        // Tiles reach past the area, the diff covers the same ground as the loaded network
+        val shift = 31 - TILE_ZOOM
+        val query = overpassChangeQuery(
+            osmBase,
+            south = MapUtils.get31LatitudeY((tiles.maxOf { it.tileY } + 1) shl shift),
+            west = MapUtils.get31LongitudeX(tiles.minOf { it.tileX } shl shift),
+            north = MapUtils.get31LatitudeY(tiles.minOf { it.tileY } shl shift),
+            east = MapUtils.get31LongitudeX((tiles.maxOf { it.tileX } + 1) shl shift)
+        )
+        if (!fetchChangeFromOverpassAPI(query, changeFile)) {
+            return@withContext null
+        }
+        Log.d(TAG, "OSM change since $osmBase fetched: ${changeFile.length()} bytes")
+        AtomicCacheFile.open(changeFile)
+    }
+    
+    /**
+     * Fetch an augmented diff into [changeFile], always replacing it
+     * Unlike tiles it is never conditional: every diff carries a newer osm_base,
+     * which the header-blind body hash would miss
+     */
+    private fun fetchChangeFromOverpassAPI(query: String, changeFile: File): Boolean {
         return try {
-            val url = URL(OVERPASS_API_URL)
-            val connection = url.openConnection() as HttpURLConnection
-            connection.requestMethod = "POST"
-            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded")
-            connection.doOutput = true
-            connection.connectTimeout = 30000
-            connection.readTimeout = 30000
-            
-            // Send query
-            connection.outputStream.use { os ->
-                val postData = "data=${java.net.URLEncoder.encode(OVERPASS_QUERY, "UTF-8")}"
-                os.write(postData.toByteArray(Charsets.UTF_8))
+            val connection = postOverpassQuery(query)
+            when (val responseCode = connection.responseCode) {
+                HttpURLConnection.HTTP_OK -> {
+                    val isGzip = connection.contentEncoding.equals("gzip", ignoreCase = true)
+                    connection.inputStream.use { body ->
+                        val data = if (isGzip) GZIPInputStream(body) else body
+                        AtomicCacheFile.write(changeFile, compress = true) { out ->
+                            data.copyTo(out)
+                            true
+                        }
+                    }
+                }
+                else -> {
+                    Log.e(TAG, "Overpass API error: HTTP $responseCode")
+                    false
+                }
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Error calling Overpass API", e)
+            false
+        }
+    }
+    
+    /**
+     * Fetch tiles whose cache is missing or older than TILE_MAX_AGE_MS
+     * At most MAX_PARALLEL_FETCHES requests run at the same time
+     */
+    private suspend fun fetchStaleTiles(): List<FetchResult> = coroutineScope {
+        val now = System.currentTimeMillis()
+        val staleTiles = tiles.filter { tile ->
+            val fetchedAt = loadMeta(tile.cacheFile).getProperty(META_FETCHED_AT)?.toLongOrNull() ?: 0L
+            !tile.cacheFile.exists() || now - fetchedAt > TILE_MAX_AGE_MS
+        }
+        Log.d(TAG, "OSM tiles: ${staleTiles.size} of ${tiles.size} stale")
+        
+        val semaphore = Semaphore(MAX_PARALLEL_FETCHES)
+        val results = staleTiles.map { tile ->
+            async {
+                semaphore.withPermit {
+                    fetchFromOverpassAPI(tile.query(), tile.cacheFile)
+                }
+            }
+        }.awaitAll()
+        if (FetchResult.UPDATED in results) {
+            pendingFile.createNewFile()
+        }
+        results
+    }
+    
+    /**
+     * Fetch data from Overpass API and stream it into [cacheFile]
+     * Returns UNCHANGED on 304 or when the body hash matches the cached one
+     */
+    private fun fetchFromOverpassAPI(query: String, cacheFile: File): FetchResult {
+        val meta = loadMeta(cacheFile)
+        return try {
+            val connection = postOverpassQuery(query) { connection ->
+                if (cacheFile.exists()) {
+                    meta.getProperty(META_ETAG)?.let { connection.setRequestProperty("If-None-Match", it) }
+                    meta.getProperty(META_LAST_MODIFIED)?.let { connection.setRequestProperty("If-Modified-Since", it) }
+                }
             }
             
             // Read response
-            val responseCode = connection.responseCode
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                connection.inputStream.bufferedReader().use { it.readText() }
-            } else {
-                Log.e(TAG, "Overpass API error: HTTP $responseCode")
-                null
+            when (val responseCode = connection.responseCode) {
+                HttpURLConnection.HTTP_OK -> {
+                    val isGzip = connection.contentEncoding.equals("gzip", ignoreCase = true)
+                    meta.setOrRemove(META_ETAG, connection.getHeaderField("ETag"))
+                    meta.setOrRemove(META_LAST_MODIFIED, connection.getHeaderField("Last-Modified"))
+                    connection.inputStream.use { body ->
+                        val data = if (isGzip) GZIPInputStream(body) else body
+                        saveToCache(data, cacheFile, meta)
+                    }
+                }
+                HttpURLConnection.HTTP_NOT_MODIFIED -> {
+                    meta.setProperty(META_FETCHED_AT, System.currentTimeMillis().toString())
+                    saveMeta(cacheFile, meta)
+                    FetchResult.UNCHANGED
+                }
+                else -> {
+                    Log.e(TAG, "Overpass API error: HTTP $responseCode")
+                    FetchResult.FAILED
+                }
             }
         } catch (e: Exception) {
             Log.e(TAG, "Error calling Overpass API", e)
-            null
+            FetchResult.FAILED
+        }
+    }
+    
+    /**
+     * Send [query] to Overpass API, [configure] adds request headers before the body is sent
+     */
+    private fun postOverpassQuery(query: String, configure: (HttpURLConnection) -> Unit = {}): HttpURLConnection {
+        val url = URL(OVERPASS_API_URL)
+        val connection = url.openConnection() as HttpURLConnection
+        connection.requestMethod = "POST"
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded")
+        // Requested explicitly, so decoding is ours and the body is never inflated in memory
+        connection.setRequestProperty("Accept-Encoding", "gzip")
+        configure(connection)
+        connection.doOutput = true
+        connection.connectTimeout = 30000
+        connection.readTimeout = 30000
+        
+        // Send query
+        connection.outputStream.use { os ->
+            val postData = "data=${java.net.URLEncoder.encode(query, "UTF-8")}"
+            os.write(postData.toByteArray(Charsets.UTF_8))
+        }
+        return connection
+    }
+    
+    /**
+     * Save OSM data to [cacheFile], gzip compressed and checksummed by AtomicCacheFile
+     * A broken download never replaces a good cache
+     * The body is hashed while streaming, an identical body leaves the cache untouched
+     */
+    private fun saveToCache(data: InputStream, cacheFile: File, meta: Properties): FetchResult {
+        val digest = DataDigest()
+        var sha256: String? = null
+        val replaced = AtomicCacheFile.write(cacheFile, compress = true) { out ->
+            val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+            while (true) {
+                val count = data.read(buffer)
+                if (count < 0) break
+                out.write(buffer, 0, count)
+                digest.update(buffer, count)
+            }
+            val hash = digest.hex()
+            sha256 = hash
+            !(cacheFile.exists() && hash == meta.getProperty(META_SHA256))
+        }
+        
+        val hash = sha256 ?: return FetchResult.FAILED
+        meta.setProperty(META_FETCHED_AT, System.currentTimeMillis().toString())
+        if (!replaced) {
+            if (hash != meta.getProperty(META_SHA256)) {
+                return FetchResult.FAILED
+            }
+            // Keep validators the server sent with the identical body
+            saveMeta(cacheFile, meta)
+            return FetchResult.UNCHANGED
         }
+        meta.setProperty(META_SHA256, hash)
+        saveMeta(cacheFile, meta)
+        Log.d(TAG, "OSM data saved to cache: ${cacheFile.absolutePath}")
+        return FetchResult.UPDATED
     }
     
     /**
-     * Save OSM data to cache file
+     * SHA-256 over the lines of an Overpass XML response, skipping the header lines
+     * that differ between requests for the same data
      */
-    private fun saveToCache(data: String) {
+    private class DataDigest {
+        private val digest = MessageDigest.getInstance("SHA-256")
+        private val line = ByteArrayOutputStream()
+        
+        fun update(buffer: ByteArray, count: Int) {
+            var start = 0
+            for (i in 0 until count) {
+                if (buffer[i] == '\n'.code.toByte()) {
+                    line.write(buffer, start, i + 1 - start)
+                    endLine()
+                    start = i + 1
+                }
+            }
+            line.write(buffer, start, count - start)
+        }
+        
+        fun hex(): String {
+            endLine()
+            return digest.digest().joinToString("") { "%02x".format(it) }
+        }
+        
+        private fun endLine() {
+            val bytes = line.toByteArray()
+            line.reset()
+            if (!isHeaderLine(bytes)) {
+                digest.update(bytes)
+            }
+        }
+        
+        private fun isHeaderLine(bytes: ByteArray): Boolean {
+            var start = 0
+            while (start < bytes.size && (bytes[start] == ' '.code.toByte() || bytes[start] == '\t'.code.toByte())) {
+                start++
+            }
+            return HEADER_PREFIXES.any { prefix ->
+                bytes.size - start >= prefix.size && (prefix.indices).all { bytes[start + it] == prefix[it] }
+            }
+        }
+        
+        companion object {
+            private val HEADER_PREFIXES = listOf("<?xml", "<osm ", "<note>", "<meta ").map { it.toByteArray() }
+        }
+    }
+    
+    /**
+     * Validators and body hash of [cacheFile], empty if the sidecar is missing or torn
+     * A sidecar from before atomic writes reads as empty, its tile is fetched again once
+     */
+    private fun loadMeta(cacheFile: File): Properties {
+        val meta = Properties()
+        val metaFile = File(cacheFile.parentFile, cacheFile.name + META_SUFFIX)
         try {
-            val cacheFile = File(context.filesDir, CACHE_FILE_NAME)
-            FileOutputStream(cacheFile).use { fos ->
-                fos.write(data.toByteArray(Charsets.UTF_8))
+            AtomicCacheFile.open(metaFile)?.use { meta.load(it) }
+        } catch (e: Exception) {
+            Log.e(TAG, "Error loading cache meta", e)
+            meta.clear()
+        }
+        return meta
+    }
+    
+    /**
+     * Sidecar goes through AtomicCacheFile like the body, so a crash never leaves it torn
+     */
+    private fun saveMeta(cacheFile: File, meta: Properties) {
+        try {
+            AtomicCacheFile.write(File(cacheFile.parentFile, cacheFile.name + META_SUFFIX)) { out ->
+                meta.store(out, null)
+                true
             }
-            Log.d(TAG, "OSM data saved to cache: ${cacheFile.absolutePath}")
         } catch (e: Exception) {
-            Log.e(TAG, "Error saving to cache", e)
+            Log.e(TAG, "Error saving cache meta", e)
         }
     }
     
+    private fun Properties.setOrRemove(key: String, value: String?) {
+        if (value.isNullOrEmpty()) remove(key) else setProperty(key, value)
+    }
+    
     /**
-     * Load OSM data from cache file
+     * Open cached tiles, or the single-file cache / bundled export while no tile is cached
+     * Partial tiles and the bundled export are not complete, their osm_base is unreliable
      */
-    private fun loadFromCache(): String? {
+    private fun loadFromCache(): OsmSource? {
         return try {
-            val cacheFile = File(context.filesDir, CACHE_FILE_NAME)
-            if (cacheFile.exists()) {
-                cacheFile.readText(Charsets.UTF_8)
+            val tileStreams = openTiles()
+            if (tileStreams.isNotEmpty()) {
+                OsmSource(tileStreams, isComplete = tileStreams.size == tiles.size)
             } else {
-                // Try loading from assets as fallback
-                loadFromAssets()
+                val cacheFile = File(context.filesDir, CACHE_FILE_NAME)
+                if (cacheFile.exists()) {
+                    OsmSource(listOf(cacheFile.inputStream().buffered()), isComplete = true)
+                } else {
+                    // Try loading from assets as fallback
+                    loadFromAssets()?.let { OsmSource(listOf(it), isComplete = false) }
+                }
             }
         } catch (e: Exception) {
             Log.e(TAG, "Error loading from cache", e)
-            loadFromAssets()
+            loadFromAssets()?.let { OsmSource(listOf(it), isComplete = false) }
+        }
+    }
+    
+    /**
+     * Open valid tile caches, a corrupted tile is deleted so the next refresh fetches it again
+     */
+    private fun openTiles(): List<InputStream> {
+        val streams = ArrayList<InputStream>(tiles.size)
+        for (tile in tiles) {
+            if (!tile.cacheFile.exists()) continue
+            val stream = AtomicCacheFile.open(tile.cacheFile)
+            if (stream != null) {
+                streams.add(stream)
+            } else {
+                Log.w(TAG, "Dropping invalid OSM tile ${tile.quadkey}")
+                tile.cacheFile.delete()
+            }
         }
+        return streams
     }
     
     /**
-     * Load OSM data from assets (initial fallback)
+     * Open OSM data from assets (initial fallback)
      */
-    private fun loadFromAssets(): String? {
+    private fun loadFromAssets(): InputStream? {
         return try {
-            context.assets.open("export.osm").bufferedReader().use { it.readText() }
+            context.assets.open("export.osm").buffered()
         } catch (e: Exception) {
             Log.e(TAG, "Error loading from assets", e)
             null
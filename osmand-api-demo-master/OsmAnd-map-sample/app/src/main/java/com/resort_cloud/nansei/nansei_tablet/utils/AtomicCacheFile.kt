@@ -0,0 +1,137 @@
+package com.resort_cloud.nansei.nansei_tablet.utils
+
+import android.util.Log
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.util.zip.CRC32
+import java.util.zip.CheckedOutputStream
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Crash-safe cache file shared by route and facility caches
+ * Content is written to a temp file, synced and renamed over the target, so readers see
+ * either the old or the new file. A CRC32 of the stored body is checked before the body
+ * is handed out, a truncated or corrupted file is reported as missing.
+ *
+ * Layout: magic (int), flags (byte), body length (long), body CRC32 (int), body
+ * The body is gzip compressed when FLAG_GZIP is set
+ */
+object AtomicCacheFile {
+    
+    private const val TAG = "AtomicCacheFile"
+    private const val MAGIC = 0x4E434631 // "NCF1"
+    private const val FLAG_GZIP = 1
+    private const val HEADER_SIZE = 4 + 1 + 8 + 4
+    
+    // Offset of body length and CRC, patched once the body is written
+    private const val CHECKSUM_OFFSET = 4 + 1
+    
+    /**
+     * Write [file] through a temp file
+     * [writeBody] may close the stream, and returns false to keep the existing file
+     * @return true if [file] was replaced
+     */
+    fun write(file: File, compress: Boolean = false, writeBody: (OutputStream) -> Boolean): Boolean {
+        val tempFile = File(file.parentFile, "${file.name}.tmp")
+        return try {
+            file.parentFile?.mkdirs()
+            val crc = CRC32()
+            var bodyLength = 0L
+            val commit = FileOutputStream(tempFile).use { fileOut ->
+                val header = DataOutputStream(fileOut)
+                header.writeInt(MAGIC)
+                header.writeByte(if (compress) FLAG_GZIP else 0)
+                header.writeLong(0L)
+                header.writeInt(0)
+                header.flush()
+                
+                val checkedOut = object : CheckedOutputStream(fileOut, crc) {
+                    override fun write(b: Int) {
+                        super.write(b)
+                        bodyLength++
+                    }
+                    
+                    override fun write(b: ByteArray, off: Int, len: Int) {
+                        super.write(b, off, len)
+                        bodyLength += len
+                    }
+                }
+                val bodyOut = if (compress) GZIPOutputStream(checkedOut.buffered()) else checkedOut.buffered()
+                bodyOut.use { writeBody(it) }
+            }
+            if (!commit) {
+                tempFile.delete()
+                return false
+            }
+            
+            RandomAccessFile(tempFile, "rw").use { raf ->
+                raf.seek(CHECKSUM_OFFSET.toLong())
+                raf.writeLong(bodyLength)
+                raf.writeInt(crc.value.toInt())
+                raf.fd.sync()
+            }
+            if (!tempFile.renameTo(file)) {
+                Log.e(TAG, "Error replacing cache file: ${file.absolutePath}")
+                tempFile.delete()
+                return false
+            }
+            true
+        } catch (e: Exception) {
+            Log.e(TAG, "Error writing cache file: ${file.absolutePath}", e)
+            tempFile.delete()
+            false
+        }
+    }
+    
+    /**
+     * Open body of [file] after validating its length and CRC
+     * Returns null if the file is missing, truncated, corrupted or not a cache file
+     */
+    fun open(file: File): InputStream? {
+        if (!file.exists()) {
+            return null
+        }
+        return try {
+            val flags: Int
+            DataInputStream(FileInputStream(file).buffered()).use { input ->
+                if (input.readInt() != MAGIC) {
+                    Log.w(TAG, "Not a cache file: ${file.absolutePath}")
+                    return null
+                }
+                flags = input.readUnsignedByte()
+                val bodyLength = input.readLong()
+                val expectedCrc = input.readInt()
+                if (bodyLength != file.length() - HEADER_SIZE) {
+                    Log.w(TAG, "Truncated cache file: ${file.absolutePath}")
+                    return null
+                }
+                
+                val crc = CRC32()
+                val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+                while (true) {
+                    val read = input.read(buffer)
+                    if (read < 0) break
+                    crc.update(buffer, 0, read)
+                }
+                if (crc.value.toInt() != expectedCrc) {
+                    Log.w(TAG, "Checksum mismatch: ${file.absolutePath}")
+                    return null
+                }
+            }
+            
+            val body = FileInputStream(file)
+            body.skip(HEADER_SIZE.toLong())
+            if (flags and FLAG_GZIP != 0) GZIPInputStream(body).buffered() else body.buffered()
+        } catch (e: Exception) {
+            Log.e(TAG, "Error opening cache file: ${file.absolutePath}", e)
+            null
+        }
+    }
+}
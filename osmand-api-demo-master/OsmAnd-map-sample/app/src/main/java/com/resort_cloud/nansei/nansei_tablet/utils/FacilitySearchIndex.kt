@@ -0,0 +1,298 @@
+package com.resort_cloud.nansei.nansei_tablet.utils
+
+import com.resort_cloud.nansei.nansei_tablet.data.model.FacilityKind
+import kotlin.math.cos
+import kotlin.math.sqrt
+
+/**
+ * Search index over visible facilities, built once when facilities load
+ * Holds normalized name / nameKana keys per facility and the unfiltered list,
+ * so a keystroke only normalizes the query and runs substring checks
+ * Substring candidates come from an inverted index of character unigrams and bigrams,
+ * only candidates present in every posting list of the query are verified
+ * Kana keys also get Hepburn and Kunrei romaji keys, so Latin queries find Japanese names
+ * searchRanked orders matches by match quality and distance from the current location
+ */
+class FacilitySearchIndex(facilityKinds: List<FacilityKind>) {
+    
+    companion object {
+        val EMPTY = FacilitySearchIndex(emptyList())
+        
+        // Each worse match quality (exact, prefix, substring) counts as this much farther away
+        private const val MATCH_QUALITY_STEP_METERS = 300.0
+        
+        private const val EARTH_RADIUS_METERS = 6371000.0
+        
+        // Unigram keys use the reserved upper half, bigrams pack two chars
+        private fun unigram(c: Char): Long = (1L shl 32) or c.code.toLong()
+        
+        private fun bigram(c1: Char, c2: Char): Long = (c1.code.toLong() shl 16) or c2.code.toLong()
+    }
+    
+    /**
+     * [keys] are normalized name, nameKana and their romaji keys
+     */
+    private class Entry(
+        val category: Int,
+        val item: FacilityItem,
+        val keys: Array<String>,
+        val latitude: Double,
+        val longitude: Double
+    ) {
+        fun matches(queryKey: String): Boolean {
+            for (key in keys) {
+                if (key.contains(queryKey)) return true
+            }
+            return false
+        }
+        
+        /**
+         * 0 for an exact key, 1 for a key prefix, 2 for a substring
+         */
+        fun matchQuality(queryKey: String): Int {
+            var quality = 2
+            for (key in keys) {
+                if (key == queryKey) return 0
+                if (key.startsWith(queryKey)) quality = 1
+            }
+            return quality
+        }
+    }
+    
+    private class RankedEntry(
+        val entry: Entry,
+        val score: Double
+    )
+    
+    /**
+     * Matching entry ids of the last query, refined when the next query contains it
+     */
+    private class LastResult(
+        val queryKey: String,
+        val matches: IntArray
+    )
+    
+    private val titles: List<FacilityItem>
+    
+    // Facilities of all categories in list order, ids are positions
+    private val entries: List<Entry>
+    
+    // Gram -> ascending entry ids
+    private val postings: Map<Long, IntArray>
+    
+    @Volatile
+    private var lastResult: LastResult? = null
+    
+    /**
+     * Category titles and facilities shown for an empty search term
+     */
+    val allItems: List<FacilityItem>
+    
+    val isEmpty: Boolean
+        get() = titles.isEmpty()
+    
+    init {
+        val all = ArrayList<FacilityItem>()
+        val entryList = ArrayList<Entry>()
+        titles = facilityKinds.mapIndexed { categoryIndex, kind ->
+            val title = FacilityItem.createCategoryTitle(kind.name)
+            all.add(title)
+            for (facility in kind.facilities) {
+                if (!facility.listData.visible) continue
+                val entry = Entry(
+                    category = categoryIndex,
+                    item = FacilityItem.createFacility(facility, kind.name),
+                    keys = createKeys(facility.listData.name, facility.listData.nameKana),
+                    latitude = facility.markerData.latitude,
+                    longitude = facility.markerData.longitude
+                )
+                entryList.add(entry)
+                all.add(entry.item)
+            }
+            title
+        }
+        entries = entryList
+        allItems = all
+        postings = buildPostings(entryList)
+    }
+    
+    /**
+     * Category titles followed by their matching facilities
+     * Categories without matches are left out
+     */
+    fun search(searchTerm: String): List<FacilityItem> {
+        val queryKey = SearchHelper.normalize(searchTerm)
+        if (queryKey.isEmpty()) {
+            return allItems
+        }
+        
+        val matches = findMatches(queryKey)
+        lastResult = LastResult(queryKey, matches)
+        
+        val result = ArrayList<FacilityItem>()
+        var lastCategory = -1
+        for (id in matches) {
+            val entry = entries[id]
+            if (entry.category != lastCategory) {
+                result.add(titles[entry.category])
+                lastCategory = entry.category
+            }
+            result.add(entry.item)
+        }
+        return result
+    }
+    
+    /**
+     * Same matches as search(), ranked by match quality and distance from [latitude], [longitude]
+     * Output keeps the category grouping: categories follow the rank of their best facility,
+     * facilities inside a category are in rank order
+     */
+    fun searchRanked(
+        searchTerm: String,
+        latitude: Double,
+        longitude: Double
+    ): List<FacilityItem> {
+        val queryKey = SearchHelper.normalize(searchTerm)
+        if (queryKey.isEmpty()) {
+            return allItems
+        }
+        
+        val matches = findMatches(queryKey)
+        lastResult = LastResult(queryKey, matches)
+        
+        // Every match is kept, ranking only changes the order
+        val cosLatitude = cos(Math.toRadians(latitude))
+        val ranked = ArrayList<RankedEntry>(matches.size)
+        for (id in matches) {
+            val entry = entries[id]
+            val score = entry.matchQuality(queryKey) * MATCH_QUALITY_STEP_METERS +
+                equirectangularDistance(latitude, longitude, cosLatitude, entry.latitude, entry.longitude)
+            ranked.add(RankedEntry(entry, score))
+        }
+        ranked.sortBy { it.score }
+        
+        val groups = LinkedHashMap<Int, MutableList<FacilityItem>>()
+        for (rankedEntry in ranked) {
+            groups.getOrPut(rankedEntry.entry.category) { ArrayList() }.add(rankedEntry.entry.item)
+        }
+        val result = ArrayList<FacilityItem>(ranked.size + groups.size)
+        for ((category, items) in groups) {
+            result.add(titles[category])
+            result.addAll(items)
+        }
+        return result
+    }
+    
+    /**
+     * Equirectangular approximation in meters, accurate at resort scale
+     * [cosLatitude] is the cosine of [latitude1], computed once per query
+     */
+    private fun equirectangularDistance(
+        latitude1: Double,
+        longitude1: Double,
+        cosLatitude: Double,
+        latitude2: Double,
+        longitude2: Double
+    ): Double {
+        val x = Math.toRadians(longitude2 - longitude1) * cosLatitude
+        val y = Math.toRadians(latitude2 - latitude1)
+        return sqrt(x * x + y * y) * EARTH_RADIUS_METERS
+    }
+    
+    private fun findMatches(queryKey: String): IntArray {
+        // Typing forward: every match of the new query matched the previous one
+        val last = lastResult
+        if (last != null && queryKey.contains(last.queryKey)) {
+            return verify(last.matches, queryKey)
+        }
+        
+        if (queryKey.length == 1) {
+            return postings[unigram(queryKey[0])] ?: IntArray(0)
+        }
+        
+        val lists = ArrayList<IntArray>(queryKey.length - 1)
+        for (i in 0 until queryKey.length - 1) {
+            lists.add(postings[bigram(queryKey[i], queryKey[i + 1])] ?: return IntArray(0))
+        }
+        lists.sortBy { it.size }
+        
+        var candidates = lists[0]
+        for (i in 1 until lists.size) {
+            if (candidates.isEmpty()) break
+            candidates = intersect(candidates, lists[i])
+        }
+        // Bigrams do not encode order beyond pairs, confirm the full substring
+        return if (queryKey.length == 2) candidates else verify(candidates, queryKey)
+    }
+    
+    private fun verify(candidates: IntArray, queryKey: String): IntArray {
+        val result = IntArray(candidates.size)
+        var count = 0
+        for (id in candidates) {
+            if (entries[id].matches(queryKey)) {
+                result[count++] = id
+            }
+        }
+        return if (count == result.size) result else result.copyOf(count)
+    }
+    
+    /**
+     * Intersection of two ascending id lists
+     */
+    private fun intersect(a: IntArray, b: IntArray): IntArray {
+        val result = IntArray(minOf(a.size, b.size))
+        var count = 0
+        var i = 0
+        var j = 0
+        while (i < a.size && j < b.size) {
+            when {
+                a[i] < b[j] -> i++
+                a[i] > b[j] -> j++
+                else -> {
+                    result[count++] = a[i]
+                    i++
+                    j++
+                }
+            }
+        }
+        return result.copyOf(count)
+    }
+    
+    /**
+     * Distinct non-empty keys, romaji transliteration is paid here once
+     */
+    private fun createKeys(name: String, nameKana: String): Array<String> {
+        val keys = LinkedHashSet<String>()
+        for (key in arrayOf(SearchHelper.normalize(name), SearchHelper.normalize(nameKana))) {
+            if (key.isEmpty()) continue
+            keys.add(key)
+            keys.addAll(RomajiTransliterator.romajiKeys(key))
+        }
+        return keys.toTypedArray()
+    }
+    
+    private fun buildPostings(entries: List<Entry>): Map<Long, IntArray> {
+        val lists = HashMap<Long, ArrayList<Int>>()
+        val grams = HashSet<Long>()
+        for ((id, entry) in entries.withIndex()) {
+            grams.clear()
+            for (key in entry.keys) {
+                for (i in key.indices) {
+                    grams.add(unigram(key[i]))
+                    if (i + 1 < key.length) {
+                        grams.add(bigram(key[i], key[i + 1]))
+                    }
+                }
+            }
+            // Ids are visited in ascending order, so every list stays sorted
+            for (gram in grams) {
+                lists.getOrPut(gram) { ArrayList(4) }.add(id)
+            }
+        }
+        val result = HashMap<Long, IntArray>(lists.size)
+        for ((gram, ids) in lists) {
+            result[gram] = ids.toIntArray()
+        }
+        return result
+    }
+}
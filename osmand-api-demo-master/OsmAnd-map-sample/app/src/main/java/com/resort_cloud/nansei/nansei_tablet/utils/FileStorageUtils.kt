@@ -5,15 +5,17 @@ import com.google.gson.Gson
 import com.resort_cloud.nansei.nansei_tablet.data.model.FacilityResponse
 import java.io.File
 import java.io.FileReader
-import java.io.FileWriter
 
 /**
  * Utility class for file storage operations
  * Handles saving and loading JSON data to/from internal storage
+ * Facilities are stored gzip compressed and checksummed through AtomicCacheFile
  */
 object FileStorageUtils {
     
-    private const val FACILITIES_FILE_NAME = "facilities_cache.json"
+    private const val FACILITIES_FILE_NAME = "facilities_cache.bin"
+    // Plain JSON cache of earlier versions, read until the first save replaces it
+    private const val LEGACY_FACILITIES_FILE_NAME = "facilities_cache.json"
     private val gson = Gson()
     
     /**
@@ -24,6 +26,10 @@ object FileStorageUtils {
         return File(cacheDir, FACILITIES_FILE_NAME)
     }
     
+    private fun getLegacyCacheFile(context: Context): File {
+        return File(context.filesDir, LEGACY_FACILITIES_FILE_NAME)
+    }
+    
     /**
      * Get the cache file path as string (for debugging/logging)
      */
@@ -33,29 +39,20 @@ object FileStorageUtils {
     
     /**
      * Save FacilityResponse to JSON file
-     * Deletes existing file before writing to prevent duplicate data
+     * Replaces the existing file atomically, a crash keeps the previous cache
      */
     fun saveFacilities(context: Context, response: FacilityResponse): Boolean {
-        return try {
-            val file = getCacheFile(context)
-            
-            // Delete existing file if exists
-            if (file.exists()) {
-                file.delete()
+        val saved = AtomicCacheFile.write(getCacheFile(context), compress = true) { body ->
+            // JSON is streamed, the whole string is never built in memory
+            body.bufferedWriter(Charsets.UTF_8).use { writer ->
+                gson.toJson(response, writer)
             }
-            
-            // Write new data
-            val json = gson.toJson(response)
-            FileWriter(file, false).use { writer ->
-                writer.write(json)
-                writer.flush()
-            }
-            
             true
-        } catch (e: Exception) {
-            e.printStackTrace()
-            false
         }
+        if (saved) {
+            getLegacyCacheFile(context).delete()
+        }
+        return saved
     }
     
     /**
@@ -63,13 +60,20 @@ object FileStorageUtils {
      */
     fun loadFacilities(context: Context): FacilityResponse? {
         return try {
-            val file = getCacheFile(context)
-            if (!file.exists()) {
-                return null
-            }
-            
-            FileReader(file).use { reader ->
-                gson.fromJson(reader, FacilityResponse::class.java)
+            val body = AtomicCacheFile.open(getCacheFile(context))
+            if (body != null) {
+                body.bufferedReader(Charsets.UTF_8).use { reader ->
+                    gson.fromJson(reader, FacilityResponse::class.java)
+                }
+            } else {
+                // Plain JSON written by earlier versions, a corrupted file fails to parse
+                val legacyFile = getLegacyCacheFile(context)
+                if (!legacyFile.exists()) {
+                    return null
+                }
+                FileReader(legacyFile).use { reader ->
+                    gson.fromJson(reader, FacilityResponse::class.java)
+                }
             }
         } catch (e: Exception) {
             e.printStackTrace()
@@ -81,7 +85,7 @@ object FileStorageUtils {
      * Check if cached file exists
      */
     fun hasCachedData(context: Context): Boolean {
-        return getCacheFile(context).exists()
+        return getCacheFile(context).exists() || getLegacyCacheFile(context).exists()
     }
     
     /**
@@ -89,9 +93,10 @@ object FileStorageUtils {
      */
     fun clearCache(context: Context): Boolean {
         return try {
-            val file = getCacheFile(context)
-            if (file.exists()) {
-                file.delete()
+            for (file in listOf(getCacheFile(context), getLegacyCacheFile(context))) {
+                if (file.exists()) {
+                    file.delete()
+                }
             }
             true
         } catch (e: Exception) {
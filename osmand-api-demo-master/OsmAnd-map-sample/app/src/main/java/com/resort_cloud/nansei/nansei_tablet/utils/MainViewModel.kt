@@ -8,20 +8,26 @@ import androidx.lifecycle.viewModelScope
 import com.resort_cloud.nansei.nansei_tablet.data.model.FacilityKind
 import com.resort_cloud.nansei.nansei_tablet.data.model.FacilityResponse
 import com.resort_cloud.nansei.nansei_tablet.data.repository.FacilityRepository
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 /**
  * ViewModel for MainActivity
  * Handles facility data loading and error management
  */
 class MainViewModel(application: Application) : AndroidViewModel(application) {
-
+    
     private val repository = FacilityRepository(application.applicationContext)
     
     // Facility kinds data
     private val _facilityKinds = MutableLiveData<List<FacilityKind>>(emptyList())
     val facilityKinds: LiveData<List<FacilityKind>> = _facilityKinds
-
+    
+    // Search index for destination search, rebuilt with facility kinds
+    private val _searchIndex = MutableLiveData(FacilitySearchIndex.EMPTY)
+    val searchIndex: LiveData<FacilitySearchIndex> = _searchIndex
+    
     // Loading state
     private val _isLoading = MutableLiveData<Boolean>(false)
     val isLoading: LiveData<Boolean> = _isLoading
@@ -31,22 +37,23 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
     val facilityError: LiveData<Throwable?> = _facilityError
     
     /**
-     * Load facilities from API
+     * Load facilities, cached data first and then the API response if it changed
      * Results are exposed through LiveData
      */
     fun loadFacilities() {
         if (_isLoading.value == true) {
             return
         }
-
+        
         viewModelScope.launch {
             _isLoading.postValue(true)
             _facilityError.postValue(null)
-            val result = repository.getFacilities()
-            result.onSuccess { response ->
-                handleSuccess(response)
-            }.onFailure { exception ->
-                handleError(exception)
+            repository.getFacilities().collect { result ->
+                result.onSuccess { response ->
+                    handleSuccess(response)
+                }.onFailure { exception ->
+                    handleError(exception)
+                }
             }
             _isLoading.postValue(false)
         }
@@ -54,9 +61,15 @@ class MainViewModel(application: Application) : AndroidViewModel(application) {
     
     /**
      * Handle successful API response
+     * Search keys are normalized off the main thread
      */
-    private fun handleSuccess(response: FacilityResponse) {
-        _facilityKinds.postValue(response.payload.facilityKinds)
+    private suspend fun handleSuccess(response: FacilityResponse) {
+        val facilityKinds = response.payload.facilityKinds
+        val index = withContext(Dispatchers.Default) {
+            FacilitySearchIndex(facilityKinds)
+        }
+        _searchIndex.postValue(index)
+        _facilityKinds.postValue(facilityKinds)
     }
     
     /**
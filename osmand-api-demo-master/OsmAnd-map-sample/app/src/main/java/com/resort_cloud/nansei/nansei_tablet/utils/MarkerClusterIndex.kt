@@ -0,0 +1,173 @@
+package com.resort_cloud.nansei.nansei_tablet.utils
+
+/**
+ * Marker clusters per zoom level, kept up to date as markers are added and removed
+ * Each zoom groups markers of the same kind falling into one grid cell, where a cell
+ * is a quarter of a tile side (64px on a 256px tile). Cells of a zoom nest inside the
+ * cells of the zoom below it, so grouping by cell gives the same clusters as merging
+ * child cells bottom-up. Cells keep running coordinate sums, a marker change touches
+ * one cell per zoom.
+ * Not thread safe, callers guard updates against concurrent queries
+ */
+class MarkerClusterIndex(
+    x31: IntArray,
+    y31: IntArray,
+    kinds: IntArray,
+    val minZoom: Int,
+    val maxZoom: Int
+) {
+    
+    companion object {
+        // Cells per tile side = 2^CELL_ZOOM_OFFSET
+        private const val CELL_ZOOM_OFFSET = 2
+        
+        private fun tileKey(tileX: Int, tileY: Int): Long {
+            return (tileX.toLong() shl 32) or (tileY.toLong() and 0xFFFFFFFFL)
+        }
+    }
+    
+    /**
+     * Cluster of markers of one kind, [firstIndex] is the index of one of its markers
+     */
+    class Cluster(
+        val x31: Int,
+        val y31: Int,
+        val kind: Int,
+        val count: Int,
+        val firstIndex: Int
+    )
+    
+    /**
+     * Markers of one kind in one cell, centroid is the mean of member coordinates
+     */
+    private class Cell(val kind: Int) {
+        var sumX = 0L
+        var sumY = 0L
+        val members = ArrayList<Int>(1)
+        
+        fun toCluster(): Cluster {
+            val count = members.size
+            return Cluster((sumX / count).toInt(), (sumY / count).toInt(), kind, count, members[0])
+        }
+    }
+    
+    /**
+     * Cells of one zoom, also grouped by the tile containing them
+     */
+    private class Level {
+        val cells = HashMap<CellKey, Cell>()
+        val tiles = HashMap<Long, MutableList<Cell>>()
+    }
+    
+    private val levels = HashMap<Int, Level>()
+    
+    init {
+        require(x31.size == y31.size && x31.size == kinds.size) { "Marker arrays must have the same size" }
+        
+        for (zoom in minZoom..maxZoom) {
+            levels[zoom] = Level()
+        }
+        for (index in x31.indices) {
+            add(index, x31[index], y31[index], kinds[index])
+        }
+    }
+    
+    fun hasLevel(zoom: Int): Boolean = zoom in minZoom..maxZoom
+    
+    /**
+     * Add marker [index] of [kind] at [x31], [y31] to its cell at every zoom
+     */
+    fun add(index: Int, x31: Int, y31: Int, kind: Int) {
+        for ((zoom, level) in levels) {
+            val key = cellKey(x31, y31, kind, zoom)
+            val cell = level.cells.getOrPut(key) {
+                Cell(kind).also {
+                    val tileKey = tileKey(key.cellX shr CELL_ZOOM_OFFSET, key.cellY shr CELL_ZOOM_OFFSET)
+                    level.tiles.getOrPut(tileKey) { ArrayList(2) }.add(it)
+                }
+            }
+            cell.sumX += x31
+            cell.sumY += y31
+            cell.members.add(index)
+        }
+    }
+    
+    /**
+     * Remove marker [index], [x31], [y31] and [kind] must be the values it was added with
+     */
+    fun remove(index: Int, x31: Int, y31: Int, kind: Int) {
+        for ((zoom, level) in levels) {
+            val key = cellKey(x31, y31, kind, zoom)
+            val cell = level.cells[key] ?: continue
+            val position = cell.members.indexOf(index)
+            if (position < 0) continue
+            cell.members.removeAt(position)
+            cell.sumX -= x31
+            cell.sumY -= y31
+            
+            if (cell.members.isEmpty()) {
+                level.cells.remove(key)
+                val tileKey = tileKey(key.cellX shr CELL_ZOOM_OFFSET, key.cellY shr CELL_ZOOM_OFFSET)
+                val tileCells = level.tiles[tileKey] ?: continue
+                tileCells.remove(cell)
+                if (tileCells.isEmpty()) {
+                    level.tiles.remove(tileKey)
+                }
+            }
+        }
+    }
+    
+    /**
+     * Clusters inside tile [tileX], [tileY] at [zoom]
+     * Cells are aligned with tiles, so every cluster centroid stays inside its tile
+     */
+    fun queryTile(tileX: Int, tileY: Int, zoom: Int): List<Cluster> {
+        val level = levels[zoom] ?: return emptyList()
+        val cells = level.tiles[tileKey(tileX, tileY)] ?: return emptyList()
+        return cells.map { it.toCluster() }
+    }
+    
+    /**
+     * Cluster at [zoom] nearest to [x31], [y31] within [radius31]
+     */
+    fun findNearest(zoom: Int, x31: Int, y31: Int, radius31: Int, accept: (Cluster) -> Boolean): Cluster? {
+        val level = levels[zoom] ?: return null
+        val shift = 31 - zoom
+        val minTileX = clamp31(x31.toLong() - radius31) shr shift
+        val maxTileX = clamp31(x31.toLong() + radius31) shr shift
+        val minTileY = clamp31(y31.toLong() - radius31) shr shift
+        val maxTileY = clamp31(y31.toLong() + radius31) shr shift
+        
+        var nearest: Cluster? = null
+        var nearestDistSq = radius31.toLong() * radius31
+        for (tileX in minTileX..maxTileX) {
+            for (tileY in minTileY..maxTileY) {
+                val cells = level.tiles[tileKey(tileX, tileY)] ?: continue
+                for (cell in cells) {
+                    val cluster = cell.toCluster()
+                    val dx = (cluster.x31 - x31).toLong()
+                    val dy = (cluster.y31 - y31).toLong()
+                    val distSq = dx * dx + dy * dy
+                    if (distSq <= nearestDistSq && accept(cluster)) {
+                        nearest = cluster
+                        nearestDistSq = distSq
+                    }
+                }
+            }
+        }
+        return nearest
+    }
+    
+    private fun cellKey(x31: Int, y31: Int, kind: Int, zoom: Int): CellKey {
+        val shift = 31 - (zoom + CELL_ZOOM_OFFSET)
+        return CellKey(x31 shr shift, y31 shr shift, kind)
+    }
+    
+    private fun clamp31(value: Long): Int = value.coerceIn(0L, Int.MAX_VALUE.toLong()).toInt()
+    
+    private data class CellKey(
+        val cellX: Int,
+        val cellY: Int,
+        val kind: Int
+    )
+}
@@ -0,0 +1,120 @@
+package com.resort_cloud.nansei.nansei_tablet.utils
+
+/**
+ * Node store for parsed OSM data keyed by primitive node id
+ * Coordinates live in parallel primitive arrays and ids are resolved through a
+ * long -> int open-addressing table, so no String, boxed key or node object is
+ * allocated per node
+ */
+class OsmNodeIndex(expectedSize: Int = DEFAULT_EXPECTED_SIZE) {
+    
+    companion object {
+        private const val DEFAULT_EXPECTED_SIZE = 1024
+        private const val EMPTY = -1
+        
+        private fun tableSizeFor(expectedSize: Int): Int {
+            // Keep load factor at or below 0.5
+            var size = 16
+            while (size < expectedSize * 2) {
+                size = size shl 1
+            }
+            return size
+        }
+    }
+    
+    // Node data, indexed by insertion order
+    private var ids = LongArray(expectedSize.coerceAtLeast(16))
+    private var lats = DoubleArray(ids.size)
+    private var lons = DoubleArray(ids.size)
+    
+    // Hash table: slot -> node index (EMPTY if unused)
+    private var table = IntArray(tableSizeFor(expectedSize)).apply { fill(EMPTY) }
+    private var mask = table.size - 1
+    
+    var size = 0
+        private set
+    
+    /**
+     * Add a node or update coordinates of an existing one
+     * @return index of the node
+     */
+    fun put(id: Long, lat: Double, lon: Double): Int {
+        var slot = slotOf(id)
+        while (true) {
+            val index = table[slot]
+            if (index == EMPTY) {
+                break
+            }
+            if (ids[index] == id) {
+                lats[index] = lat
+                lons[index] = lon
+                return index
+            }
+            slot = (slot + 1) and mask
+        }
+        
+        ensureCapacity(size + 1)
+        val index = size++
+        ids[index] = id
+        lats[index] = lat
+        lons[index] = lon
+        
+        if (size * 2 > table.size) {
+            rehash(table.size shl 1)
+        } else {
+            table[slot] = index
+        }
+        return index
+    }
+    
+    /**
+     * Resolve node id to its index
+     * @return index or -1 if node is unknown
+     */
+    fun indexOf(id: Long): Int {
+        var slot = slotOf(id)
+        while (true) {
+            val index = table[slot]
+            if (index == EMPTY || ids[index] == id) {
+                return index
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+    
+    fun contains(id: Long): Boolean = indexOf(id) != EMPTY
+    
+    fun getId(index: Int): Long = ids[index]
+    
+    fun getLat(index: Int): Double = lats[index]
+    
+    fun getLon(index: Int): Double = lons[index]
+    
+    private fun slotOf(id: Long): Int {
+        // Fibonacci hashing spreads sequential OSM ids across the table
+        val hash = id * -0x61c8864680b583ebL
+        return (hash xor (hash ushr 32)).toInt() and mask
+    }
+    
+    private fun ensureCapacity(capacity: Int) {
+        if (capacity <= ids.size) {
+            return
+        }
+        val newSize = maxOf(capacity, ids.size * 2)
+        ids = ids.copyOf(newSize)
+        lats = lats.copyOf(newSize)
+        lons = lons.copyOf(newSize)
+    }
+    
+    private fun rehash(newTableSize: Int) {
+        table = IntArray(newTableSize).apply { fill(EMPTY) }
+        mask = newTableSize - 1
+        for (index in 0 until size) {
+            var slot = slotOf(ids[index])
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) and mask
+            }
+            table[slot] = index
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.resort_cloud.nansei.nansei_tablet.utils
 
 import android.util.Log
+import net.osmand.util.MapUtils
 import org.xmlpull.v1.XmlPullParser
 import org.xmlpull.v1.XmlPullParserFactory
-import java.io.StringReader
+import java.io.File
+import java.io.InputStream
 
 /**
  * Parser for OSM XML data to extract ways and nodes for polyline rendering
@@ -32,44 +34,154 @@ class OsmParser {
     )
     
     /**
-     * Parse OSM XML string and return structured data
+     * Way with primitive id and node refs
      */
-    fun parseOsmXml(xmlContent: String): OsmData {
-        val nodes = mutableMapOf<String, OsmNode>()
-        val ways = mutableListOf<OsmWay>()
+    class PackedWay(
+        val id: Long,
+        val nodeRefs: LongArray,
+        val tags: Map<String, String>
+    )
+    
+    /**
+     * Compact representation of parsed OSM data
+     * Nodes are kept in an [OsmNodeIndex], way refs as [LongArray]
+     * [osmBase] is the Overpass data timestamp (meta osm_base), null if unknown
+     */
+    class PackedOsmData(
+        val nodes: OsmNodeIndex,
+        val ways: List<PackedWay>,
+        val osmBase: String? = null
+    )
+    
+    /**
+     * Changes parsed from an Overpass augmented diff or an osmChange document
+     * Created and modified elements are upserts, deleted nodes are not tracked:
+     * ways losing a node are reported as modified
+     */
+    class OsmChange(
+        val nodes: OsmNodeIndex,
+        val ways: List<PackedWay>,
+        val deletedWayIds: Set<Long>,
+        val osmBase: String?
+    ) {
+        val isEmpty: Boolean
+            get() = nodes.size == 0 && ways.isEmpty() && deletedWayIds.isEmpty()
+    }
+    
+    /**
+     * Polylines packed into primitive buffers
+     * Vertices of all ways share one interleaved x31/y31 buffer, polyline i spans
+     * vertices [offsets[i], offsets[i + 1])
+     */
+    class PackedPolylines(
+        val points31: IntArray,
+        val offsets: IntArray,
+        val wayIndices: IntArray // Index of the source way in PackedOsmData.ways
+    ) {
+        val size: Int
+            get() = offsets.size - 1
+        
+        /**
+         * Copy interleaved x31/y31 of one polyline
+         */
+        fun copyPoints31(polyline: Int): IntArray {
+            return points31.copyOfRange(offsets[polyline] * 2, offsets[polyline + 1] * 2)
+        }
+    }
+    
+    /**
+     * Parse OSM XML straight from a stream (HTTP body, cache file or asset)
+     * The stream is consumed but not closed, the caller owns it
+     */
+    fun parseOsm(inputStream: InputStream): PackedOsmData {
+        // Null encoding lets the parser pick it up from the XML declaration
+        return parse { parser -> parser.setInput(inputStream, null) }
+    }
+    
+    /**
+     * Parse OSM XML file without loading it into memory first
+     */
+    fun parseOsm(file: File): PackedOsmData {
+        return file.inputStream().buffered().use { parseOsm(it) }
+    }
+    
+    /**
+     * Merge data parsed from several tiles into one
+     * Ways crossing tile borders are returned whole by every tile, the first copy is kept
+     */
+    fun mergeOsm(parts: List<PackedOsmData>): PackedOsmData {
+        if (parts.size == 1) {
+            return parts[0]
+        }
+        val nodes = OsmNodeIndex(parts.sumOf { it.nodes.size })
+        val ways = ArrayList<PackedWay>(parts.sumOf { it.ways.size })
+        val wayIds = HashSet<Long>()
+        for (part in parts) {
+            for (index in 0 until part.nodes.size) {
+                nodes.put(part.nodes.getId(index), part.nodes.getLat(index), part.nodes.getLon(index))
+            }
+            for (way in part.ways) {
+                if (wayIds.add(way.id)) {
+                    ways.add(way)
+                }
+            }
+        }
+        Log.d(TAG, "Merged ${parts.size} parts into ${nodes.size} nodes and ${ways.size} ways")
+        // Oldest part bounds the data age, ISO timestamps compare as strings
+        // A diff from it re-applies newer changes of other parts, which is harmless,
+        // and skips none; a part of unknown age leaves the whole age unknown
+        val osmBase = if (parts.any { it.osmBase == null }) null else parts.minOf { it.osmBase!! }
+        return PackedOsmData(nodes, ways, osmBase)
+    }
+    
+    /**
+     * Pull events from the parser prepared by [setInput] and build structured data
+     */
+    private fun parse(setInput: (XmlPullParser) -> Unit): PackedOsmData {
+        val nodes = OsmNodeIndex()
+        val ways = mutableListOf<PackedWay>()
+        var osmBase: String? = null
         
         try {
             val factory = XmlPullParserFactory.newInstance()
             val parser = factory.newPullParser()
-            parser.setInput(StringReader(xmlContent))
+            setInput(parser)
             
             var eventType = parser.eventType
-            var currentWay: MutableList<String>? = null
-            var currentWayId: String? = null
+            // Refs buffer is reused for every way and copied once the way ends
+            var currentRefs = LongArray(64)
+            var currentRefCount = 0
+            var currentWayId: Long? = null
             var currentTags = mutableMapOf<String, String>()
             
             while (eventType != XmlPullParser.END_DOCUMENT) {
                 when (eventType) {
                     XmlPullParser.START_TAG -> {
                         when (parser.name) {
+                            "meta" -> {
+                                osmBase = parser.getAttributeValue(null, "osm_base") ?: osmBase
+                            }
                             "node" -> {
-                                val id = parser.getAttributeValue(null, "id")
+                                val id = parser.getAttributeValue(null, "id")?.toLongOrNull()
                                 val lat = parser.getAttributeValue(null, "lat")?.toDoubleOrNull()
                                 val lon = parser.getAttributeValue(null, "lon")?.toDoubleOrNull()
                                 
                                 if (id != null && lat != null && lon != null) {
-                                    nodes[id] = OsmNode(id, lat, lon)
+                                    nodes.put(id, lat, lon)
                                 }
                             }
                             "way" -> {
-                                currentWayId = parser.getAttributeValue(null, "id")
-                                currentWay = mutableListOf()
+                                currentWayId = parser.getAttributeValue(null, "id")?.toLongOrNull()
+                                currentRefCount = 0
                                 currentTags = mutableMapOf()
                             }
                             "nd" -> {
-                                val ref = parser.getAttributeValue(null, "ref")
-                                if (ref != null) {
-                                    currentWay?.add(ref)
+                                val ref = parser.getAttributeValue(null, "ref")?.toLongOrNull()
+                                if (ref != null && currentWayId != null) {
+                                    if (currentRefCount == currentRefs.size) {
+                                        currentRefs = currentRefs.copyOf(currentRefs.size * 2)
+                                    }
+                                    currentRefs[currentRefCount++] = ref
                                 }
                             }
                             "tag" -> {
@@ -82,10 +194,11 @@ class OsmParser {
                         }
                     }
                     XmlPullParser.END_TAG -> {
-                        if (parser.name == "way" && currentWayId != null && currentWay != null) {
-                            ways.add(OsmWay(currentWayId, currentWay, currentTags))
-                            currentWay = null
+                        val wayId = currentWayId
+                        if (parser.name == "way" && wayId != null) {
+                            ways.add(PackedWay(wayId, currentRefs.copyOf(currentRefCount), currentTags))
                             currentWayId = null
+                            currentRefCount = 0
                             currentTags = mutableMapOf()
                         }
                     }
@@ -98,7 +211,134 @@ class OsmParser {
             Log.e(TAG, "Error parsing OSM XML", e)
         }
         
-        return OsmData(nodes, ways)
+        return PackedOsmData(nodes, ways, osmBase)
+    }
+    
+    /**
+     * Parse an Overpass augmented diff (action elements with old / new parts)
+     * or an osmChange document (create / modify / delete blocks)
+     * Returns null if the document could not be parsed, a partial change is never applied
+     */
+    fun parseOsmChange(inputStream: InputStream): OsmChange? {
+        val nodes = OsmNodeIndex()
+        val ways = LinkedHashMap<Long, PackedWay>()
+        val deletedWayIds = HashSet<Long>()
+        var osmBase: String? = null
+        
+        return try {
+            val parser = XmlPullParserFactory.newInstance().newPullParser()
+            parser.setInput(inputStream, null)
+            
+            // Elements are upserted inside create / modify, deleted inside delete
+            var isDelete = false
+            // Augmented diffs repeat the previous version under <old>, which is skipped
+            var isOld = false
+            var currentRefs = LongArray(64)
+            var currentRefCount = 0
+            var currentWayId: Long? = null
+            var currentTags = mutableMapOf<String, String>()
+            
+            var eventType = parser.eventType
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                when (eventType) {
+                    XmlPullParser.START_TAG -> {
+                        when (parser.name) {
+                            "meta" -> osmBase = parser.getAttributeValue(null, "osm_base") ?: osmBase
+                            "action" -> isDelete = parser.getAttributeValue(null, "type") == "delete"
+                            "create", "modify" -> isDelete = false
+                            "delete" -> isDelete = true
+                            "old" -> isOld = true
+                            "new" -> isOld = false
+                            "node" -> {
+                                val id = parser.getAttributeValue(null, "id")?.toLongOrNull()
+                                val lat = parser.getAttributeValue(null, "lat")?.toDoubleOrNull()
+                                val lon = parser.getAttributeValue(null, "lon")?.toDoubleOrNull()
+                                if (!isDelete && !isOld && id != null && lat != null && lon != null) {
+                                    nodes.put(id, lat, lon)
+                                }
+                            }
+                            "way" -> {
+                                val id = parser.getAttributeValue(null, "id")?.toLongOrNull()
+                                if (id != null && isDelete) {
+                                    deletedWayIds.add(id)
+                                    ways.remove(id)
+                                } else if (id != null && !isOld) {
+                                    currentWayId = id
+                                    currentRefCount = 0
+                                    currentTags = mutableMapOf()
+                                }
+                            }
+                            "nd" -> {
+                                val ref = parser.getAttributeValue(null, "ref")?.toLongOrNull()
+                                if (ref != null && currentWayId != null) {
+                                    if (currentRefCount == currentRefs.size) {
+                                        currentRefs = currentRefs.copyOf(currentRefs.size * 2)
+                                    }
+                                    currentRefs[currentRefCount++] = ref
+                                }
+                            }
+                            "tag" -> {
+                                val k = parser.getAttributeValue(null, "k")
+                                val v = parser.getAttributeValue(null, "v")
+                                if (k != null && v != null && currentWayId != null) {
+                                    currentTags[k] = v
+                                }
+                            }
+                        }
+                    }
+                    XmlPullParser.END_TAG -> {
+                        val wayId = currentWayId
+                        when (parser.name) {
+                            "way" -> if (wayId != null) {
+                                ways[wayId] = PackedWay(wayId, currentRefs.copyOf(currentRefCount), currentTags)
+                                deletedWayIds.remove(wayId)
+                                currentWayId = null
+                            }
+                            "old" -> isOld = false
+                            "action", "delete" -> isDelete = false
+                        }
+                    }
+                }
+                eventType = parser.next()
+            }
+            
+            Log.d(TAG, "Parsed change: ${nodes.size} nodes, ${ways.size} ways, ${deletedWayIds.size} deleted ways")
+            OsmChange(nodes, ArrayList(ways.values), deletedWayIds, osmBase)
+        } catch (e: Exception) {
+            Log.e(TAG, "Error parsing OSM change", e)
+            null
+        }
+    }
+    
+    /**
+     * Apply [change] to [osmData]
+     * Node coordinates are updated in place, the way list is copied with changed ways
+     * replaced, deleted ways dropped and created ways appended, keeping way order stable
+     * @param tagKeys tags kept on changed ways, null to keep all tags
+     */
+    fun applyChange(
+        osmData: PackedOsmData,
+        change: OsmChange,
+        tagKeys: Set<String>? = null
+    ): PackedOsmData {
+        for (index in 0 until change.nodes.size) {
+            osmData.nodes.put(change.nodes.getId(index), change.nodes.getLat(index), change.nodes.getLon(index))
+        }
+        
+        val changedWays = LinkedHashMap<Long, PackedWay>(change.ways.size * 2)
+        for (way in change.ways) {
+            val tags = if (tagKeys == null) way.tags else way.tags.filterKeys { it in tagKeys }
+            changedWays[way.id] = PackedWay(way.id, way.nodeRefs, tags)
+        }
+        
+        val ways = ArrayList<PackedWay>(osmData.ways.size + changedWays.size)
+        for (way in osmData.ways) {
+            if (way.id in change.deletedWayIds) continue
+            ways.add(changedWays.remove(way.id) ?: way)
+        }
+        ways.addAll(changedWays.values)
+        
+        return PackedOsmData(osmData.nodes, ways, change.osmBase ?: osmData.osmBase)
     }
     
     /**
@@ -126,6 +366,43 @@ class OsmParser {
         return polylines
     }
     
+    /**
+     * Convert packed OSM ways to polylines in flat 31-bit buffers
+     * Unresolved node refs are skipped, ways without any resolved node are dropped
+     */
+    fun waysToPackedPolylines(osmData: PackedOsmData): PackedPolylines {
+        val nodes = osmData.nodes
+        val totalRefs = osmData.ways.sumOf { it.nodeRefs.size }
+        val points31 = IntArray(totalRefs * 2)
+        val offsets = IntArray(osmData.ways.size + 1)
+        val wayIndices = IntArray(osmData.ways.size)
+        var pointCount = 0
+        var polylineCount = 0
+        
+        for ((wayIndex, way) in osmData.ways.withIndex()) {
+            val start = pointCount
+            for (nodeRef in way.nodeRefs) {
+                val index = nodes.indexOf(nodeRef)
+                if (index < 0) continue
+                points31[pointCount * 2] = MapUtils.get31TileNumberX(nodes.getLon(index))
+                points31[pointCount * 2 + 1] = MapUtils.get31TileNumberY(nodes.getLat(index))
+                pointCount++
+            }
+            if (pointCount > start) {
+                wayIndices[polylineCount] = wayIndex
+                polylineCount++
+                offsets[polylineCount] = pointCount
+            }
+        }
+        
+        Log.d(TAG, "Packed $polylineCount ways into $pointCount polyline points")
+        return PackedPolylines(
+            points31.copyOf(pointCount * 2),
+            offsets.copyOf(polylineCount + 1),
+            wayIndices.copyOf(polylineCount)
+        )
+    }
+    
     /**
      * Get all coordinates from all ways (flattened)
      */
@@ -0,0 +1,148 @@
+package com.resort_cloud.nansei.nansei_tablet.utils
+
+/**
+ * Joins OSM ways that share endpoint nodes into maximal chains
+ * Overpass returns the golf cart network as many short service ways, merging
+ * them reduces the number of native lines and draw batches
+ *
+ * Only ways with equal tags are joined, so stitched ways keep a single set of tags.
+ * Equality can be limited to the tags that are actually rendered.
+ * A node where more than two candidate ends meet is a junction and is never
+ * stitched through, so junctions stay at line ends. One-way ways are never
+ * reversed while stitching.
+ */
+object OsmWayStitcher {
+    
+    /**
+     * Stitch connected ways of [osmData]
+     * A stitched way takes the smallest id of its members, so its identity is stable
+     * as long as that member exists
+     * @param tagKeys tags compared when joining ways, null to compare all tags
+     */
+    fun stitch(osmData: OsmParser.PackedOsmData, tagKeys: Set<String>? = null): OsmParser.PackedOsmData {
+        val ways = osmData.ways
+        if (ways.size < 2) {
+            return osmData
+        }
+        
+        // Ways with equal (compared) tags share a group id
+        val groupIds = IntArray(ways.size)
+        val groups = HashMap<Map<String, String>, Int>()
+        for ((index, way) in ways.withIndex()) {
+            val comparedTags = if (tagKeys == null) way.tags else way.tags.filterKeys { it in tagKeys }
+            groupIds[index] = groups.getOrPut(comparedTags) { groups.size }
+        }
+        
+        // Endpoint node -> ways ending there, per tag group
+        val endpoints = HashMap<EndpointKey, MutableList<Int>>(ways.size * 2)
+        for ((index, way) in ways.withIndex()) {
+            if (way.nodeRefs.size < 2 || isClosed(way)) continue
+            val group = groupIds[index]
+            endpoints.getOrPut(EndpointKey(way.nodeRefs.first(), group)) { mutableListOf() }.add(index)
+            endpoints.getOrPut(EndpointKey(way.nodeRefs.last(), group)) { mutableListOf() }.add(index)
+        }
+        
+        val used = BooleanArray(ways.size)
+        val result = ArrayList<OsmParser.PackedWay>(ways.size)
+        
+        for ((index, way) in ways.withIndex()) {
+            if (used[index]) continue
+            used[index] = true
+            if (way.nodeRefs.size < 2 || isClosed(way)) {
+                result.add(way)
+                continue
+            }
+            
+            // Grow chain in both directions from the seed way
+            val chain = ArrayDeque<LongArray>()
+            chain.add(way.nodeRefs)
+            val group = groupIds[index]
+            val directed = isOneWay(way)
+            var minId = way.id
+            
+            var tail = way.nodeRefs.last()
+            while (true) {
+                val next = findContinuation(endpoints, tail, group, used) ?: break
+                if (directed && ways[next].nodeRefs.first() != tail) break
+                used[next] = true
+                minId = minOf(minId, ways[next].id)
+                val refs = orient(ways[next].nodeRefs, startNode = tail)
+                chain.addLast(refs)
+                tail = refs.last()
+            }
+            
+            var head = way.nodeRefs.first()
+            while (true) {
+                val prev = findContinuation(endpoints, head, group, used) ?: break
+                if (directed && ways[prev].nodeRefs.last() != head) break
+                used[prev] = true
+                minId = minOf(minId, ways[prev].id)
+                val refs = orient(ways[prev].nodeRefs, startNode = head).reversedArray()
+                chain.addFirst(refs)
+                head = refs.first()
+            }
+            
+            if (chain.size == 1) {
+                result.add(way)
+            } else {
+                result.add(OsmParser.PackedWay(minId, concat(chain), way.tags))
+            }
+        }
+        
+        return OsmParser.PackedOsmData(osmData.nodes, result)
+    }
+    
+    /**
+     * Find the single unused way continuing a chain at [node]
+     * Returns null at chain ends and at junctions
+     */
+    private fun findContinuation(
+        endpoints: Map<EndpointKey, List<Int>>,
+        node: Long,
+        group: Int,
+        used: BooleanArray
+    ): Int? {
+        val candidates = endpoints[EndpointKey(node, group)] ?: return null
+        // Exactly two ends meet at a pass-through node: the chain so far and its continuation
+        if (candidates.size != 2) return null
+        return candidates.firstOrNull { !used[it] }
+    }
+    
+    /**
+     * Return refs oriented so that they start at [startNode]
+     */
+    private fun orient(refs: LongArray, startNode: Long): LongArray {
+        return if (refs.first() == startNode) refs else refs.reversedArray()
+    }
+    
+    private fun isOneWay(way: OsmParser.PackedWay): Boolean {
+        return when (way.tags["oneway"]) {
+            "yes", "1", "-1" -> true
+            else -> false
+        }
+    }
+    
+    private fun isClosed(way: OsmParser.PackedWay): Boolean {
+        return way.nodeRefs.first() == way.nodeRefs.last()
+    }
+    
+    /**
+     * Concatenate chain parts, dropping the node shared between consecutive parts
+     */
+    private fun concat(parts: Collection<LongArray>): LongArray {
+        val size = parts.sumOf { it.size } - (parts.size - 1)
+        val refs = LongArray(size)
+        var pos = 0
+        for ((i, part) in parts.withIndex()) {
+            val from = if (i == 0) 0 else 1
+            part.copyInto(refs, pos, from, part.size)
+            pos += part.size - from
+        }
+        return refs
+    }
+    
+    private data class EndpointKey(
+        val node: Long,
+        val group: Int
+    )
+}
@@ -0,0 +1,190 @@
+package com.resort_cloud.nansei.nansei_tablet.utils
+
+import java.util.BitSet
+
+/**
+ * Spatial index of points in 31-bit tile coordinates bucketed by quadkey
+ * Points are sorted by Morton code (interleaved x/y bits), so the points of any tile
+ * at any zoom share a code prefix and form one contiguous run found by binary search
+ * Points can be added, moved or removed one by one, the sorted arrays are shifted
+ * around the changed entry and never sorted again
+ * Not thread safe, callers guard updates against concurrent queries
+ */
+class QuadkeyIndex(x31: IntArray, y31: IntArray) {
+    
+    companion object {
+        private const val MAX_ZOOM = 31
+        
+        /**
+         * Interleave bits of x and y, x taking the higher bit of each pair
+         */
+        fun mortonCode(x: Int, y: Int): Long {
+            return (spreadBits(x) shl 1) or spreadBits(y)
+        }
+        
+        /**
+         * Quadkey string of tile [tileX], [tileY] at [zoom], one base-4 digit per zoom level
+         */
+        fun quadkey(tileX: Int, tileY: Int, zoom: Int): String {
+            val builder = StringBuilder(zoom)
+            for (level in zoom downTo 1) {
+                val mask = 1 shl (level - 1)
+                var digit = 0
+                if (tileX and mask != 0) digit += 1
+                if (tileY and mask != 0) digit += 2
+                builder.append(digit)
+            }
+            return builder.toString()
+        }
+        
+        private fun spreadBits(value: Int): Long {
+            var v = value.toLong() and 0x7FFFFFFFL
+            v = (v or (v shl 16)) and 0x0000FFFF0000FFFFL
+            v = (v or (v shl 8)) and 0x00FF00FF00FF00FFL
+            v = (v or (v shl 4)) and 0x0F0F0F0F0F0F0F0FL
+            v = (v or (v shl 2)) and 0x3333333333333333L
+            v = (v or (v shl 1)) and 0x5555555555555555L
+            return v
+        }
+    }
+    
+    // Coordinates per point index, grown when a point beyond them is added
+    private var x31 = x31.copyOf()
+    private var y31 = y31.copyOf()
+    private val present = BitSet()
+    
+    // Sorted Morton codes and the original point index at each sorted position,
+    // only the first [size] entries are in use
+    private var codes: LongArray
+    private var order: IntArray
+    
+    var size: Int = 0
+        private set
+    
+    init {
+        require(x31.size == y31.size) { "x31 and y31 must have the same size" }
+        val unsortedCodes = LongArray(x31.size) { mortonCode(x31[it], y31[it]) }
+        order = (0 until x31.size).sortedBy { unsortedCodes[it] }.toIntArray()
+        codes = LongArray(order.size) { unsortedCodes[order[it]] }
+        present.set(0, x31.size)
+        size = x31.size
+    }
+    
+    /**
+     * Add point [index] at [x], [y], or move it there if it is already indexed
+     */
+    fun put(index: Int, x: Int, y: Int) {
+        if (present[index]) {
+            removeSorted(index)
+        }
+        if (index >= x31.size) {
+            val capacity = maxOf(index + 1, x31.size * 2)
+            x31 = x31.copyOf(capacity)
+            y31 = y31.copyOf(capacity)
+        }
+        x31[index] = x
+        y31[index] = y
+        present.set(index)
+        
+        if (size == codes.size) {
+            val capacity = maxOf(8, size * 2)
+            codes = codes.copyOf(capacity)
+            order = order.copyOf(capacity)
+        }
+        val code = mortonCode(x, y)
+        val pos = lowerBound(code)
+        System.arraycopy(codes, pos, codes, pos + 1, size - pos)
+        System.arraycopy(order, pos, order, pos + 1, size - pos)
+        codes[pos] = code
+        order[pos] = index
+        size++
+    }
+    
+    /**
+     * Remove point [index], no-op if it is not indexed
+     */
+    fun remove(index: Int) {
+        if (!present[index]) return
+        removeSorted(index)
+        present.clear(index)
+    }
+    
+    private fun removeSorted(index: Int) {
+        // Equal codes form a run, the point is one of them
+        var pos = lowerBound(mortonCode(x31[index], y31[index]))
+        while (order[pos] != index) {
+            pos++
+        }
+        System.arraycopy(codes, pos + 1, codes, pos, size - pos - 1)
+        System.arraycopy(order, pos + 1, order, pos, size - pos - 1)
+        size--
+    }
+    
+    /**
+     * Indexes of points inside tile [tileX], [tileY] at [zoom]
+     */
+    fun queryTile(tileX: Int, tileY: Int, zoom: Int): IntArray {
+        val range = tileRange(tileX, tileY, zoom)
+        return IntArray(range.last - range.first + 1) { order[range.first + it] }
+    }
+    
+    /**
+     * Index of the point nearest to [x], [y] within [radius], or -1
+     * Searched tiles are at the coarsest zoom whose tile side still covers the search
+     * diameter, so at most 2x2 contiguous runs are scanned
+     * @param accept filter for candidate point indexes
+     */
+    fun findNearest(x: Int, y: Int, radius: Int, accept: (Int) -> Boolean = { true }): Int {
+        var zoom = MAX_ZOOM
+        while (zoom > 0 && (1L shl (MAX_ZOOM - zoom)) < 2L * radius) {
+            zoom--
+        }
+        val shift = MAX_ZOOM - zoom
+        val minTileX = (x.toLong() - radius).coerceIn(0L, Int.MAX_VALUE.toLong()).toInt() shr shift
+        val maxTileX = (x.toLong() + radius).coerceIn(0L, Int.MAX_VALUE.toLong()).toInt() shr shift
+        val minTileY = (y.toLong() - radius).coerceIn(0L, Int.MAX_VALUE.toLong()).toInt() shr shift
+        val maxTileY = (y.toLong() + radius).coerceIn(0L, Int.MAX_VALUE.toLong()).toInt() shr shift
+        
+        var nearest = -1
+        var nearestDistSq = radius.toLong() * radius
+        for (tileX in minTileX..maxTileX) {
+            for (tileY in minTileY..maxTileY) {
+                for (pos in tileRange(tileX, tileY, zoom)) {
+                    val index = order[pos]
+                    val dx = (x31[index] - x).toLong()
+                    val dy = (y31[index] - y).toLong()
+                    val distSq = dx * dx + dy * dy
+                    if (distSq <= nearestDistSq && accept(index)) {
+                        nearest = index
+                        nearestDistSq = distSq
+                    }
+                }
+            }
+        }
+        return nearest
+    }
+    
+    /**
+     * Sorted positions of points inside tile, empty range if none
+     */
+    private fun tileRange(tileX: Int, tileY: Int, zoom: Int): IntRange {
+        val shift = 2 * (MAX_ZOOM - zoom.coerceIn(0, MAX_ZOOM))
+        val first = mortonCode(tileX, tileY) shl shift
+        val last = first + (1L shl shift) // Exclusive
+        
+        return lowerBound(first) until lowerBound(last)
+    }
+    
+    /**
+     * First sorted position with code >= [code]
+     */
+    private fun lowerBound(code: Long): Int {
+        var low = 0
+        var high = size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (codes[mid] < code) low = mid + 1 else high = mid
+        }
+        return low
+    }
+}
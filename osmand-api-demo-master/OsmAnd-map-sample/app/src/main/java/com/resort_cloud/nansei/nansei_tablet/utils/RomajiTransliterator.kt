@@ -0,0 +1,227 @@
+package com.resort_cloud.nansei.nansei_tablet.utils
+
+/**
+ * Katakana to Latin romaji for search keys, Hepburn ("shigira") and Kunrei ("sigira")
+ * The bundled icu4j jar ships without transliteration data (Transliterator fails to load),
+ * so keys are converted by longest match over the kana table below
+ * Input is a SearchHelper.normalize key, kanji and Latin text pass through unchanged
+ */
+object RomajiTransliterator {
+    
+    // Katakana, Hepburn, Kunrei
+    private val KANA_TABLE = """
+        ア a a
+        イ i i
+        ウ u u
+        エ e e
+        オ o o
+        カ ka ka
+        キ ki ki
+        ク ku ku
+        ケ ke ke
+        コ ko ko
+        ガ ga ga
+        ギ gi gi
+        グ gu gu
+        ゲ ge ge
+        ゴ go go
+        サ sa sa
+        シ shi si
+        ス su su
+        セ se se
+        ソ so so
+        ザ za za
+        ジ ji zi
+        ズ zu zu
+        ゼ ze ze
+        ゾ zo zo
+        タ ta ta
+        チ chi ti
+        ツ tsu tu
+        テ te te
+        ト to to
+        ダ da da
+        ヂ ji zi
+        ヅ zu zu
+        デ de de
+        ド do do
+        ナ na na
+        ニ ni ni
+        ヌ nu nu
+        ネ ne ne
+        ノ no no
+        ハ ha ha
+        ヒ hi hi
+        フ fu hu
+        ヘ he he
+        ホ ho ho
+        バ ba ba
+        ビ bi bi
+        ブ bu bu
+        ベ be be
+        ボ bo bo
+        パ pa pa
+        ピ pi pi
+        プ pu pu
+        ペ pe pe
+        ポ po po
+        マ ma ma
+        ミ mi mi
+        ム mu mu
+        メ me me
+        モ mo mo
+        ヤ ya ya
+        ユ yu yu
+        ヨ yo yo
+        ラ ra ra
+        リ ri ri
+        ル ru ru
+        レ re re
+        ロ ro ro
+        ワ wa wa
+        ヰ i i
+        ヱ e e
+        ヲ o o
+        ン n n
+        ヴ vu vu
+        ァ a a
+        ィ i i
+        ゥ u u
+        ェ e e
+        ォ o o
+        ャ ya ya
+        ュ yu yu
+        ョ yo yo
+        ヮ wa wa
+        キャ kya kya
+        キュ kyu kyu
+        キョ kyo kyo
+        ギャ gya gya
+        ギュ gyu gyu
+        ギョ gyo gyo
+        シャ sha sya
+        シュ shu syu
+        ショ sho syo
+        シェ she sye
+        ジャ ja zya
+        ジュ ju zyu
+        ジョ jo zyo
+        ジェ je zye
+        チャ cha tya
+        チュ chu tyu
+        チョ cho tyo
+        チェ che tye
+        ヂャ ja zya
+        ヂュ ju zyu
+        ヂョ jo zyo
+        ニャ nya nya
+        ニュ nyu nyu
+        ニョ nyo nyo
+        ヒャ hya hya
+        ヒュ hyu hyu
+        ヒョ hyo hyo
+        ビャ bya bya
+        ビュ byu byu
+        ビョ byo byo
+        ピャ pya pya
+        ピュ pyu pyu
+        ピョ pyo pyo
+        ミャ mya mya
+        ミュ myu myu
+        ミョ myo myo
+        リャ rya rya
+        リュ ryu ryu
+        リョ ryo ryo
+        ティ ti ti
+        ディ di di
+        トゥ tu tu
+        ドゥ du du
+        ファ fa fa
+        フィ fi fi
+        フェ fe fe
+        フォ fo fo
+        ウィ wi wi
+        ウェ we we
+        ウォ wo wo
+        ヴァ va va
+        ヴィ vi vi
+        ヴェ ve ve
+        ヴォ vo vo
+    """.trimIndent()
+    
+    private const val SOKUON = 'ッ'
+    private const val LONG_VOWEL = 'ー'
+    
+    // Kana sequence -> romaji, one map per romanization
+    private val hepburn: Map<String, String> by lazy { createTable(1) }
+    private val kunrei: Map<String, String> by lazy { createTable(2) }
+    
+    /**
+     * Romaji keys of [key] differing from it, empty when [key] has no katakana
+     */
+    fun romajiKeys(key: String): List<String> {
+        if (key.none { it.code in 0x30A1..0x30FC }) {
+            return emptyList()
+        }
+        val keys = ArrayList<String>(2)
+        for (table in arrayOf(hepburn, kunrei)) {
+            val romaji = transliterate(key, table)
+            if (romaji != key && romaji !in keys) {
+                keys.add(romaji)
+            }
+        }
+        return keys
+    }
+    
+    /**
+     * Longest match of two kana, then one
+     * Sokuon doubles the next consonant, long vowel marks are dropped
+     */
+    private fun transliterate(key: String, table: Map<String, String>): String {
+        val builder = StringBuilder(key.length * 2)
+        var doubleNext = false
+        var i = 0
+        while (i < key.length) {
+            val char = key[i]
+            if (char == SOKUON || char == LONG_VOWEL) {
+                doubleNext = char == SOKUON
+                i++
+                continue
+            }
+            
+            var romaji: String? = null
+            var length = 2
+            while (romaji == null && length > 0) {
+                if (i + length <= key.length) {
+                    romaji = table[key.substring(i, i + length)]
+                }
+                if (romaji == null) length--
+            }
+            
+            if (romaji == null) {
+                builder.append(char)
+                i++
+            } else {
+                if (doubleNext && romaji[0] !in "aiueon") {
+                    builder.append(if (romaji.startsWith("ch")) 't' else romaji[0])
+                }
+                builder.append(romaji)
+                i += length
+            }
+            doubleNext = false
+        }
+        return builder.toString()
+    }
+    
+    /**
+     * Kana to romaji from [KANA_TABLE] column [column]
+     */
+    private fun createTable(column: Int): Map<String, String> {
+        val table = HashMap<String, String>()
+        for (line in KANA_TABLE.lines()) {
+            val fields = line.trim().split(' ')
+            table[fields[0]] = fields[column]
+        }
+        return table
+    }
+}
@@ -0,0 +1,106 @@
+package com.resort_cloud.nansei.nansei_tablet.utils
+
+import com.resort_cloud.nansei.nansei_tablet.data.model.RouteTrack
+
+/**
+ * Uniform grid over 31-bit tile coordinates bucketing route tracks by bounding box
+ * A track is registered in every cell its bounding box touches
+ */
+class RouteGridIndex(private val tracks: List<RouteTrack>) {
+    
+    companion object {
+        // One cell is a zoom 15 tile, about 1.2 km at the equator
+        private const val CELL_SHIFT = 31 - 15
+        
+        /**
+         * Cells covered by rectangle in 31-bit coordinates
+         */
+        fun cellRange(left31: Int, top31: Int, right31: Int, bottom31: Int): CellRange {
+            return CellRange(
+                minX = minOf(left31, right31) shr CELL_SHIFT,
+                minY = minOf(top31, bottom31) shr CELL_SHIFT,
+                maxX = maxOf(left31, right31) shr CELL_SHIFT,
+                maxY = maxOf(top31, bottom31) shr CELL_SHIFT
+            )
+        }
+        
+        private fun cellKey(cellX: Int, cellY: Int): Long {
+            return (cellX.toLong() shl 32) or (cellY.toLong() and 0xFFFFFFFFL)
+        }
+    }
+    
+    data class CellRange(
+        val minX: Int,
+        val minY: Int,
+        val maxX: Int,
+        val maxY: Int
+    ) {
+        val cellCount: Long
+            get() = (maxX - minX + 1).toLong() * (maxY - minY + 1).toLong()
+        
+        fun contains(cellX: Int, cellY: Int): Boolean {
+            return cellX in minX..maxX && cellY in minY..maxY
+        }
+    }
+    
+    // Cell key -> indexes of tracks touching the cell
+    private val cells = HashMap<Long, MutableList<Int>>()
+    
+    init {
+        for ((index, track) in tracks.withIndex()) {
+            if (track.pointCount == 0) continue
+            var left = Int.MAX_VALUE
+            var top = Int.MAX_VALUE
+            var right = Int.MIN_VALUE
+            var bottom = Int.MIN_VALUE
+            for (i in 0 until track.pointCount) {
+                val x = track.getX31(i)
+                val y = track.getY31(i)
+                if (x < left) left = x
+                if (x > right) right = x
+                if (y < top) top = y
+                if (y > bottom) bottom = y
+            }
+            
+            val range = cellRange(left, top, right, bottom)
+            for (cellX in range.minX..range.maxX) {
+                for (cellY in range.minY..range.maxY) {
+                    cells.getOrPut(cellKey(cellX, cellY)) { ArrayList(4) }.add(index)
+                }
+            }
+        }
+    }
+    
+    /**
+     * Tracks touching any cell of [range], each track returned once
+     */
+    fun query(range: CellRange): List<RouteTrack> {
+        val seen = BooleanArray(tracks.size)
+        val result = ArrayList<RouteTrack>()
+        
+        fun collect(indexes: List<Int>) {
+            for (index in indexes) {
+                if (!seen[index]) {
+                    seen[index] = true
+                    result.add(tracks[index])
+                }
+            }
+        }
+        
+        if (range.cellCount > cells.size) {
+            // Zoomed far out: cheaper to scan occupied cells than the whole range
+            for ((key, indexes) in cells) {
+                if (range.contains((key shr 32).toInt(), key.toInt())) {
+                    collect(indexes)
+                }
+            }
+        } else {
+            for (cellX in range.minX..range.maxX) {
+                for (cellY in range.minY..range.maxY) {
+                    cells[cellKey(cellX, cellY)]?.let { collect(it) }
+                }
+            }
+        }
+        return result
+    }
+}
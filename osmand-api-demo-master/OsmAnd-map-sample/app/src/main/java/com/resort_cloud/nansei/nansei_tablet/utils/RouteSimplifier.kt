@@ -0,0 +1,136 @@
+package com.resort_cloud.nansei.nansei_tablet.utils
+
+import com.resort_cloud.nansei.nansei_tablet.data.model.RouteTrack
+
+/**
+ * Douglas-Peucker simplification of route geometry in 31-bit tile coordinates
+ */
+object RouteSimplifier {
+    
+    /**
+     * Zoom bands of the internal routes level-of-detail pyramid
+     * Tolerance is given in screen pixels at the band's max zoom, the finest zoom it
+     * draws, where one pixel of a 256px tile covers 2^(31 - 8 - zoom) units in 31-bit coordinates
+     */
+    enum class ZoomBand(val minZoom: Int, private val tolerancePx: Double) {
+        OVERVIEW(0, 1.0),
+        AREA(14, 1.0),
+        STREET(16, 0.5),
+        DETAIL(18, 0.0); // Raw geometry
+        
+        /**
+         * Last zoom drawn with this band, the zoom before the next band starts
+         */
+        val maxZoom: Int
+            get() = entries.getOrNull(ordinal + 1)?.let { it.minZoom - 1 } ?: minZoom
+        
+        val tolerance31: Double
+            get() = tolerancePx * (1 shl (23 - maxZoom)).toDouble()
+        
+        companion object {
+            fun forZoom(zoom: Int): ZoomBand {
+                return entries.last { zoom >= it.minZoom }
+            }
+        }
+    }
+    
+    /**
+     * Simplify track for [band], returns the same instance if no point can be dropped
+     */
+    fun simplify(track: RouteTrack, band: ZoomBand): RouteTrack {
+        val tolerance = band.tolerance31
+        if (tolerance <= 0.0 || track.pointCount <= 2) {
+            return track
+        }
+        val points31 = simplify(track.points31, tolerance)
+        return if (points31.size == track.points31.size) {
+            track
+        } else {
+            RouteTrack(track.wayId, track.tags, points31)
+        }
+    }
+    
+    /**
+     * Simplify interleaved x31/y31 points keeping every point farther than
+     * [tolerance] from the simplified line. First and last points are always kept.
+     */
+    fun simplify(points31: IntArray, tolerance: Double): IntArray {
+        val count = points31.size / 2
+        if (count <= 2) {
+            return points31
+        }
+        
+        val keep = BooleanArray(count)
+        keep[0] = true
+        keep[count - 1] = true
+        val toleranceSq = tolerance * tolerance
+        
+        // Explicit stack of [start, end] ranges instead of recursion
+        val stack = IntArray(count * 2)
+        var top = 0
+        stack[top++] = 0
+        stack[top++] = count - 1
+        
+        while (top > 0) {
+            val end = stack[--top]
+            val start = stack[--top]
+            if (end - start < 2) continue
+            
+            var maxDistSq = -1.0
+            var maxIndex = -1
+            for (i in start + 1 until end) {
+                val distSq = segmentDistanceSq(points31, i, start, end)
+                if (distSq > maxDistSq) {
+                    maxDistSq = distSq
+                    maxIndex = i
+                }
+            }
+            
+            if (maxDistSq > toleranceSq) {
+                keep[maxIndex] = true
+                stack[top++] = start
+                stack[top++] = maxIndex
+                stack[top++] = maxIndex
+                stack[top++] = end
+            }
+        }
+        
+        var keptCount = 0
+        for (k in keep) if (k) keptCount++
+        if (keptCount == count) {
+            return points31
+        }
+        
+        val result = IntArray(keptCount * 2)
+        var pos = 0
+        for (i in 0 until count) {
+            if (keep[i]) {
+                result[pos++] = points31[i * 2]
+                result[pos++] = points31[i * 2 + 1]
+            }
+        }
+        return result
+    }
+    
+    /**
+     * Squared distance from point [p] to segment [a]-[b], in 31-bit units
+     */
+    private fun segmentDistanceSq(points31: IntArray, p: Int, a: Int, b: Int): Double {
+        val px = points31[p * 2].toDouble()
+        val py = points31[p * 2 + 1].toDouble()
+        val ax = points31[a * 2].toDouble()
+        val ay = points31[a * 2 + 1].toDouble()
+        val dx = points31[b * 2] - ax
+        val dy = points31[b * 2 + 1] - ay
+        
+        val lengthSq = dx * dx + dy * dy
+        val t = if (lengthSq == 0.0) {
+            0.0
+        } else {
+            (((px - ax) * dx + (py - ay) * dy) / lengthSq).coerceIn(0.0, 1.0)
+        }
+        val cx = ax + t * dx - px
+        val cy = ay + t * dy - py
+        return cx * cx + cy * cy
+    }
+}
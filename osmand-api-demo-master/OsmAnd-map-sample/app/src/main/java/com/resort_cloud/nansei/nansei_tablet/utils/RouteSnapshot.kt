@@ -0,0 +1,258 @@
+package com.resort_cloud.nansei.nansei_tablet.utils
+
+import android.util.Log
+import com.resort_cloud.nansei.nansei_tablet.data.model.RouteTrack
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+
+/**
+ * Versioned binary snapshot of processed internal route tracks
+ * Lets routes be drawn on cold start without fetching and re-parsing OSM XML
+ * Stored through AtomicCacheFile, so a snapshot that loads is complete and needs no checks
+ * Version 2 also keeps the raw (not stitched) way network with its Overpass timestamp,
+ * so later refreshes can apply diffs instead of downloading everything again
+ * Version 3 marks tracks built from stitched ways, older snapshots are rebuilt
+ *
+ * Layout (all varints are unsigned LEB128, signed values are zigzag encoded):
+ * - magic (int), version (int), track count (varint)
+ * - per track: way id delta from previous track (signed varint),
+ *   tag count (varint) followed by key/value pairs (UTF),
+ *   point count (varint) followed by x31/y31 deltas from previous point (signed varints)
+ * - network flag (boolean), when set: osm_base (UTF, empty if unknown),
+ *   node count (varint), per node: id delta (signed varint), lat / lon (double, exact),
+ *   way count (varint), per way: id delta (signed varint), tags as for tracks,
+ *   ref count (varint) followed by node id deltas (signed varints)
+ */
+object RouteSnapshot {
+    
+    private const val TAG = "RouteSnapshot"
+    private const val MAGIC = 0x49525453 // "IRTS"
+    private const val VERSION = 3
+    
+    /**
+     * Snapshot content, [network] is null when the snapshot was written without it
+     */
+    class Snapshot(
+        val tracks: List<RouteTrack>,
+        val network: OsmParser.PackedOsmData?
+    )
+    
+    /**
+     * Write tracks to snapshot file
+     * Goes through a temp file so a crash never leaves a half-written snapshot behind
+     */
+    fun write(file: File, tracks: List<RouteTrack>, network: OsmParser.PackedOsmData? = null): Boolean {
+        val written = AtomicCacheFile.write(file) { body ->
+            DataOutputStream(body).use { out ->
+                out.writeInt(MAGIC)
+                out.writeInt(VERSION)
+                writeVarInt(out, tracks.size)
+                
+                var prevWayId = 0L
+                for (track in tracks) {
+                    writeSignedVarLong(out, track.wayId - prevWayId)
+                    prevWayId = track.wayId
+                    
+                    writeTags(out, track.tags)
+                    
+                    writeVarInt(out, track.pointCount)
+                    var prevX = 0
+                    var prevY = 0
+                    for (i in 0 until track.pointCount) {
+                        val x = track.getX31(i)
+                        val y = track.getY31(i)
+                        writeSignedVarInt(out, x - prevX)
+                        writeSignedVarInt(out, y - prevY)
+                        prevX = x
+                        prevY = y
+                    }
+                }
+                
+                out.writeBoolean(network != null)
+                if (network != null) {
+                    writeNetwork(out, network)
+                }
+            }
+            true
+        }
+        if (written) {
+            Log.d(TAG, "Snapshot saved: ${tracks.size} tracks, ${file.length()} bytes")
+        }
+        return written
+    }
+    
+    /**
+     * Read tracks and network from snapshot file
+     * Returns null if file is missing, corrupted or written by another format version
+     */
+    fun read(file: File): Snapshot? {
+        // Missing, truncated and corrupted files all read as no snapshot
+        val body = AtomicCacheFile.open(file) ?: return null
+        return try {
+            DataInputStream(body).use { input ->
+                if (input.readInt() != MAGIC) {
+                    Log.w(TAG, "Not a route snapshot: ${file.absolutePath}")
+                    return null
+                }
+                val version = input.readInt()
+                if (version != VERSION) {
+                    Log.w(TAG, "Unsupported snapshot version $version, rebuilding")
+                    return null
+                }
+                
+                val trackCount = readVarInt(input)
+                val tracks = ArrayList<RouteTrack>(trackCount)
+                var wayId = 0L
+                repeat(trackCount) {
+                    wayId += readSignedVarLong(input)
+                    
+                    val tags = readTags(input)
+                    
+                    val pointCount = readVarInt(input)
+                    val points31 = IntArray(pointCount * 2)
+                    var x = 0
+                    var y = 0
+                    for (i in 0 until pointCount) {
+                        x += readSignedVarInt(input)
+                        y += readSignedVarInt(input)
+                        points31[i * 2] = x
+                        points31[i * 2 + 1] = y
+                    }
+                    tracks.add(RouteTrack(wayId, tags, points31))
+                }
+                val network = if (input.readBoolean()) readNetwork(input) else null
+                Log.d(TAG, "Snapshot loaded: ${tracks.size} tracks, ${network?.ways?.size ?: 0} network ways")
+                Snapshot(tracks, network)
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Error reading snapshot", e)
+            null
+        }
+    }
+    
+    private fun writeNetwork(out: DataOutputStream, network: OsmParser.PackedOsmData) {
+        out.writeUTF(network.osmBase ?: "")
+        
+        val nodes = network.nodes
+        writeVarInt(out, nodes.size)
+        var prevId = 0L
+        for (index in 0 until nodes.size) {
+            writeSignedVarLong(out, nodes.getId(index) - prevId)
+            prevId = nodes.getId(index)
+            // Exact doubles, rebuilt tracks must match the ones built from XML
+            out.writeDouble(nodes.getLat(index))
+            out.writeDouble(nodes.getLon(index))
+        }
+        
+        writeVarInt(out, network.ways.size)
+        prevId = 0L
+        for (way in network.ways) {
+            writeSignedVarLong(out, way.id - prevId)
+            prevId = way.id
+            writeTags(out, way.tags)
+            writeVarInt(out, way.nodeRefs.size)
+            var prevRef = 0L
+            for (ref in way.nodeRefs) {
+                writeSignedVarLong(out, ref - prevRef)
+                prevRef = ref
+            }
+        }
+    }
+    
+    private fun readNetwork(input: DataInputStream): OsmParser.PackedOsmData {
+        val osmBase = input.readUTF().ifEmpty { null }
+        
+        val nodeCount = readVarInt(input)
+        val nodes = OsmNodeIndex(nodeCount)
+        var id = 0L
+        repeat(nodeCount) {
+            id += readSignedVarLong(input)
+            nodes.put(id, input.readDouble(), input.readDouble())
+        }
+        
+        val wayCount = readVarInt(input)
+        val ways = ArrayList<OsmParser.PackedWay>(wayCount)
+        id = 0L
+        repeat(wayCount) {
+            id += readSignedVarLong(input)
+            val tags = readTags(input)
+            val refs = LongArray(readVarInt(input))
+            var ref = 0L
+            for (i in refs.indices) {
+                ref += readSignedVarLong(input)
+                refs[i] = ref
+            }
+            ways.add(OsmParser.PackedWay(id, refs, tags))
+        }
+        return OsmParser.PackedOsmData(nodes, ways, osmBase)
+    }
+    
+    private fun writeTags(out: DataOutputStream, tags: Map<String, String>) {
+        writeVarInt(out, tags.size)
+        for ((key, value) in tags) {
+            out.writeUTF(key)
+            out.writeUTF(value)
+        }
+    }
+    
+    private fun readTags(input: DataInputStream): Map<String, String> {
+        val tagCount = readVarInt(input)
+        val tags = LinkedHashMap<String, String>(tagCount * 2)
+        repeat(tagCount) {
+            val key = input.readUTF()
+            tags[key] = input.readUTF()
+        }
+        return tags
+    }
+    
+    private fun writeVarInt(out: DataOutputStream, value: Int) {
+        writeVarLong(out, value.toLong() and 0xFFFFFFFFL)
+    }
+    
+    private fun writeSignedVarInt(out: DataOutputStream, value: Int) {
+        writeVarInt(out, (value shl 1) xor (value shr 31))
+    }
+    
+    private fun writeSignedVarLong(out: DataOutputStream, value: Long) {
+        writeVarLong(out, (value shl 1) xor (value shr 63))
+    }
+    
+    private fun writeVarLong(out: DataOutputStream, value: Long) {
+        var v = value
+        while (v and 0x7FL.inv() != 0L) {
+            out.writeByte(((v and 0x7F) or 0x80).toInt())
+            v = v ushr 7
+        }
+        out.writeByte(v.toInt())
+    }
+    
+    private fun readVarInt(input: DataInputStream): Int {
+        return readVarLong(input).toInt()
+    }
+    
+    private fun readSignedVarInt(input: DataInputStream): Int {
+        val v = readVarInt(input)
+        return (v ushr 1) xor -(v and 1)
+    }
+    
+    private fun readSignedVarLong(input: DataInputStream): Long {
+        val v = readVarLong(input)
+        return (v ushr 1) xor -(v and 1)
+    }
+    
+    private fun readVarLong(input: DataInputStream): Long {
+        var result = 0L
+        var shift = 0
+        while (shift < 64) {
+            val b = input.readUnsignedByte()
+            result = result or ((b and 0x7F).toLong() shl shift)
+            if (b and 0x80 == 0) {
+                return result
+            }
+            shift += 7
+        }
+        throw IOException("Malformed varint in snapshot")
+    }
+}